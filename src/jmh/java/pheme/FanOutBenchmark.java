@@ -0,0 +1,76 @@
+package jmh.java.pheme;
+
+import main.java.pheme.PhemeService;
+import main.java.timedelayqueue.BasicMessageType;
+import main.java.timedelayqueue.ReceiverSet;
+import main.java.timedelayqueue.TransientPubSubMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of PhemeService.sendMessage for a message addressed to
+ * 1, 1k and 100k recipients.
+ *
+ * <p>
+ * Messages are transient with a 1 ms lifetime, so each send expires the
+ * previous one from every inbox and the inboxes stay small across the run.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+
+    private static final String SENDER_NAME = "sender";
+    private static final String PASSWORD    = "not-a-real-hash";
+
+    @Param({"1", "1000", "100000"})
+    public int recipients;
+
+    private PhemeService srv;
+    private UUID senderID;
+    private ReceiverSet receivers;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        srv      = new PhemeService(new File("secret/credentials.json"));
+        senderID = UUID.randomUUID();
+        srv.addUser(senderID, SENDER_NAME, PASSWORD);
+
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < recipients; i++) {
+            UUID id = UUID.randomUUID();
+            srv.addUser(id, "user" + i, PASSWORD);
+            ids.add(id);
+        }
+        receivers = ReceiverSet.of(ids);
+    }
+
+    @Benchmark
+    public boolean sendMessage() {
+        TransientPubSubMessage msg = new TransientPubSubMessage(UUID.randomUUID(),
+            new Timestamp(System.currentTimeMillis()), senderID, receivers,
+            "\"fan-out\"", BasicMessageType.SIMPLEMSG, 1);
+        return srv.sendMessage(SENDER_NAME, PASSWORD, msg);
+    }
+}
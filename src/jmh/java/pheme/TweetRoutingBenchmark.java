@@ -0,0 +1,109 @@
+package jmh.java.pheme;
+
+import main.java.pheme.PhemeService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of PhemeService.deliverTweet for one author with 100 to 10k subscribers,
+ * each subscribed to 3 patterns drawn from a shared pool of keywords.
+ *
+ * <p>
+ * The tweets are generated from a fixed vocabulary of words, hashtags, mentions, links
+ * and emoji, 280 characters at most. Few of them match any pattern, so the time is
+ * mostly routing rather than adding to inboxes, and the inboxes stay small across the run.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TweetRoutingBenchmark {
+
+    private static final String PASSWORD = "not-a-real-hash";
+    private static final String AUTHOR = "ubcengineering";
+    private static final Timestamp CREATED = new Timestamp(0);
+    private static final int TWEETS = 1000;
+    private static final int MAX_TWEET_LENGTH = 280;
+    private static final int KEYWORDS = 5000;
+    private static final int PATTERNS_PER_SUBSCRIBER = 3;
+    private static final String[] WORDS = {
+        "the", "a", "to", "and", "of", "in", "is", "for", "on", "with", "at", "this", "our",
+        "students", "campus", "research", "today", "congratulations", "graduates", "event",
+        "week", "team", "new", "join", "us", "learn", "more", "about", "vancouver", "okanagan",
+        "engineering", "science", "faculty", "community", "great", "day", "proud", "announce",
+        "#UBC", "#T20WorldCup", "#research", "#GradSeason", "@UBCnews", "@ubcengineering",
+        "https://t.co/x2Fq9LpZ", "\ud83c\udf89", "\ud83d\udc4f", "Caf\u00e9", "RT"
+    };
+
+    @Param({"100", "1000", "10000"})
+    public int subscribers;
+
+    private PhemeService srv;
+    private List<String> tweets;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(221);
+        tweets = new ArrayList<>(TWEETS);
+        for (int i = 0; i < TWEETS; i++) {
+            StringBuilder tweet = new StringBuilder();
+            int length = 40 + random.nextInt(MAX_TWEET_LENGTH - 40);
+            while (tweet.length() < length) {
+                tweet.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            tweets.add(tweet.substring(0, Math.min(tweet.length(), MAX_TWEET_LENGTH)));
+        }
+
+        // keywords made of letters, so most of them are not in the vocabulary
+        List<String> keywords = new ArrayList<>(KEYWORDS);
+        for (int i = 0; i < KEYWORDS; i++) {
+            StringBuilder keyword = new StringBuilder(i % 3 == 0 ? "#" : "");
+            for (int c = 5 + random.nextInt(8); c > 0; c--) {
+                keyword.append((char) ('a' + random.nextInt(26)));
+            }
+            keywords.add(keyword.toString());
+        }
+        keywords.set(0, "congratulations graduates");
+
+        srv = new PhemeService(new File("secret/credentials.json"));
+        for (int i = 0; i < subscribers; i++) {
+            String userName = "user" + i;
+            srv.addUser(UUID.randomUUID(), userName, PASSWORD);
+            for (int p = 0; p < PATTERNS_PER_SUBSCRIBER; p++) {
+                srv.addSubscription(userName, PASSWORD, AUTHOR, keywords.get(random.nextInt(KEYWORDS)));
+            }
+        }
+
+        // build the author's routing before measuring
+        srv.deliverTweet(AUTHOR, CREATED, "", "");
+    }
+
+    @Benchmark
+    public int deliverTweet() {
+        String tweet = tweets.get(next);
+        next = (next + 1) % TWEETS;
+        return srv.deliverTweet(AUTHOR, CREATED, tweet, tweet);
+    }
+}
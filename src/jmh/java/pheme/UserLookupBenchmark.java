@@ -0,0 +1,68 @@
+package jmh.java.pheme;
+
+import main.java.pheme.PhemeService;
+import main.java.timedelayqueue.PubSubMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of looking up a user by name in PhemeService, through isUser()
+ * and through the authentication done by getNext(), with 1k to 1M users.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class UserLookupBenchmark {
+
+    private static final String PASSWORD = "not-a-real-hash";
+
+    @Param({"1000", "100000", "1000000"})
+    public int users;
+
+    private PhemeService srv;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        srv = new PhemeService(new File("secret/credentials.json"));
+        for (int i = 0; i < users; i++) {
+            srv.addUser(UUID.randomUUID(), "user" + i, PASSWORD);
+        }
+    }
+
+    private String randomUser() {
+        return "user" + ThreadLocalRandom.current().nextInt(users);
+    }
+
+    @Benchmark
+    public boolean isUserHit() {
+        return srv.isUser(randomUser());
+    }
+
+    @Benchmark
+    public boolean isUserMiss() {
+        return srv.isUser("missing" + ThreadLocalRandom.current().nextInt(users));
+    }
+
+    @Benchmark
+    public PubSubMessage getNext() {
+        return srv.getNext(randomUser(), PASSWORD);
+    }
+}
@@ -0,0 +1,85 @@
+package jmh.java.security;
+
+import main.java.security.AESCipher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of AESCipher.encrypt and decrypt, which reuse a per-thread
+ * Cipher, against the same work done with a Cipher looked up and
+ * initialised on every call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class AESCipherBenchmark {
+
+    private static final String KEY = "benchmark key";
+
+    @Param({"32", "1024"})
+    public int length;
+
+    private AESCipher aes;
+    private SecretKeySpec secretKey;
+    private String plainText;
+    private String cipherText;
+
+    @Setup
+    public void setup() throws Exception {
+        aes = new AESCipher(KEY);
+        byte[] digest = MessageDigest.getInstance("SHA-1").digest(KEY.getBytes(StandardCharsets.UTF_8));
+        secretKey = new SecretKeySpec(Arrays.copyOf(digest, 16), "AES");
+
+        char[] text = new char[length];
+        Arrays.fill(text, 'm');
+        plainText = new String(text);
+        cipherText = aes.encrypt(plainText);
+    }
+
+    @Benchmark
+    public String encryptCached() {
+        return aes.encrypt(plainText);
+    }
+
+    @Benchmark
+    public String decryptCached() {
+        return aes.decrypt(cipherText);
+    }
+
+    @Benchmark
+    public String encryptPerCall() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+        return Base64.getEncoder()
+            .encodeToString(cipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Benchmark
+    public String decryptPerCall() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, secretKey);
+        return new String(cipher.doFinal(Base64.getDecoder().decode(cipherText)));
+    }
+}
@@ -0,0 +1,49 @@
+package jmh.java.security;
+
+import main.java.security.BlowfishCipher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of BlowfishCipher.hashPassword at low work factors, where the
+ * per-hash setup (key schedule initialisation and buffers) is a visible
+ * share of the total.
+ *
+ * <p>
+ * Run with {@code -prof gc} to see the allocation rate per hash.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlowfishCipherBenchmark {
+
+    @Param({"4", "6", "10"})
+    public int logRounds;
+
+    private String salt;
+
+    @Setup
+    public void setup() {
+        salt = BlowfishCipher.gensalt(logRounds);
+    }
+
+    @Benchmark
+    public String hashPassword() {
+        return BlowfishCipher.hashPassword("correct horse battery staple", salt);
+    }
+}
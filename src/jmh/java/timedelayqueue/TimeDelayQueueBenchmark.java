@@ -0,0 +1,155 @@
+package jmh.java.timedelayqueue;
+
+import main.java.timedelayqueue.ConcurrentTimeDelayQueue;
+import main.java.timedelayqueue.BasicMessageType;
+import main.java.timedelayqueue.MessageQueue;
+import main.java.timedelayqueue.PubSubMessage;
+import main.java.timedelayqueue.TimeDelayQueue;
+import main.java.timedelayqueue.TransientPubSubMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Timestamp;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of the TimeDelayQueue operations across queue sizes,
+ * transient message ratios, implementations and thread counts.
+ *
+ * <p>
+ * Each queue is pre-filled with queueSize distinct messages whose delay has already
+ * elapsed, a transientRatio fraction of them transient with a lifetime long
+ * enough that they do not expire during the run. Messages added during the run
+ * are distinct from each other and from those pre-filled, and are given cheap
+ * sequential ids so that generating them is not what is measured.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimeDelayQueueBenchmark {
+
+    private static final int DELAY         = 0;
+    private static final int LONG_LIFETIME = Integer.MAX_VALUE;
+    private static final UUID SENDER       = UUID.randomUUID();
+    private static final UUID RECEIVER     = UUID.randomUUID();
+
+    @State(Scope.Benchmark)
+    public static class QueueState {
+        @Param({"1000", "100000", "1000000"})
+        public int queueSize;
+
+        @Param({"0.0", "0.5"})
+        public double transientRatio;
+
+        @Param({"synchronized", "concurrent"})
+        public String implementation;
+
+        public MessageQueue tdq;
+
+        // older than every pre-filled message, so messages added with it
+        // are at the head of the queue in the order they were added
+        private long oldest;
+        private final long idSeed = UUID.randomUUID().getMostSignificantBits();
+        private final AtomicLong nextID = new AtomicLong();
+
+        @Setup(Level.Iteration)
+        public void fill() {
+            tdq = implementation.equals("concurrent")
+                ? new ConcurrentTimeDelayQueue(DELAY)
+                : new TimeDelayQueue(DELAY);
+
+            long start = System.currentTimeMillis() - queueSize;
+            oldest = start - 1;
+            for (int i = 0; i < queueSize; i++) {
+                tdq.add(newMessage(start + i, i < queueSize * transientRatio));
+            }
+            tdq.registerPeakLoadWindow(1000);
+        }
+
+        PubSubMessage newMessage(boolean isTransient) {
+            return newMessage(System.currentTimeMillis(), isTransient);
+        }
+
+        PubSubMessage newMessage(long timestamp, boolean isTransient) {
+            if (isTransient) {
+                return new TransientPubSubMessage(newID(), new Timestamp(timestamp),
+                    SENDER, RECEIVER, "\"bench\"", BasicMessageType.SIMPLEMSG, LONG_LIFETIME);
+            }
+            return new PubSubMessage(newID(), new Timestamp(timestamp),
+                SENDER, RECEIVER, "\"bench\"", BasicMessageType.SIMPLEMSG);
+        }
+
+        // a transient message at the head of the queue that expires a millisecond from now
+        PubSubMessage newExpiringMessage() {
+            int lifetime = (int) (System.currentTimeMillis() - oldest + 1);
+            return new TransientPubSubMessage(newID(), new Timestamp(oldest),
+                SENDER, RECEIVER, "\"bench\"", BasicMessageType.SIMPLEMSG, lifetime);
+        }
+
+        private UUID newID() {
+            return new UUID(idSeed, nextID.getAndIncrement());
+        }
+    }
+
+    @Benchmark
+    public boolean add(QueueState state) {
+        return state.tdq.add(state.newMessage(false));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean addContended(QueueState state) {
+        return state.tdq.add(state.newMessage(false));
+    }
+
+    // takes the earliest message and adds a new, distinct one behind the rest,
+    // so the queue stays at queueSize and each call removes a different head
+    @Benchmark
+    public PubSubMessage getNext(QueueState state) {
+        PubSubMessage msg = state.tdq.getNext();
+        state.tdq.add(state.newMessage(false));
+        return msg;
+    }
+
+    @Benchmark
+    @Threads(8)
+    public PubSubMessage getNextContended(QueueState state) {
+        PubSubMessage msg = state.tdq.getNext();
+        state.tdq.add(state.newMessage(false));
+        return msg;
+    }
+
+    @Benchmark
+    public int getPeakLoadScan(QueueState state) {
+        return state.tdq.getPeakLoad(10);
+    }
+
+    @Benchmark
+    public int getPeakLoadRegistered(QueueState state) {
+        return state.tdq.getPeakLoad(1000);
+    }
+
+    // adds a transient message that expires a millisecond later and removes those that
+    // have expired, so in the steady state each call expires about one message
+    @Benchmark
+    public void removeTransientMsg(QueueState state) {
+        state.tdq.add(state.newExpiringMessage());
+        state.tdq.removeTransientMsg();
+    }
+}
@@ -0,0 +1,116 @@
+package main.java.pheme;
+
+import java.util.Arrays;
+
+// Description: A CompactBitmap is a set of non-negative ints stored in the style of a roaring bitmap.
+//              Values are grouped by their high 16 bits into containers. A container holding few
+//              values is a sorted char[] of their low 16 bits; once it holds more than
+//              ARRAY_MAX_SIZE values it becomes a 65536-bit long[] bitmap. Sparse sets therefore
+//              cost about two bytes per value and dense sets about one bit per value.
+
+// Representation Invariant: keys[0..size) are strictly increasing, and containers[i] holds the values
+//                           whose high 16 bits are keys[i]. Each container is either an ArrayContainer
+//                           with 1..ARRAY_MAX_SIZE sorted, distinct values or a BitmapContainer.
+
+// Abstraction Function: AF(b) = { (b.keys[i] << 16) | low : 0 <= i < b.size, low in b.containers[i] }
+
+// Thread safety: CompactBitmap is not thread safe; callers must guard each bitmap with a lock.
+
+class CompactBitmap {
+
+    private static final int ARRAY_MAX_SIZE = 4096;
+
+    private char[] keys = new char[1];
+    private Container[] containers = new Container[1];
+    private int size = 0;
+
+    // the low 16 bits of the values sharing one high 16 bits
+    private interface Container {
+        Container add(char low);
+
+        boolean contains(char low);
+    }
+
+    // a sorted array of low bits, for containers holding few values
+    private static final class ArrayContainer implements Container {
+        private char[] values = new char[4];
+        private int count = 0;
+
+        public Container add(char low) {
+            int pos = Arrays.binarySearch(values, 0, count, low);
+            if (pos >= 0) {
+                return this;
+            }
+            if (count == ARRAY_MAX_SIZE) {
+                BitmapContainer bitmap = new BitmapContainer();
+                for (int i = 0; i < count; i++) {
+                    bitmap.add(values[i]);
+                }
+                return bitmap.add(low);
+            }
+
+            pos = -pos - 1;
+            if (count == values.length) {
+                values = Arrays.copyOf(values, Math.min(2 * values.length, ARRAY_MAX_SIZE));
+            }
+            System.arraycopy(values, pos, values, pos + 1, count - pos);
+            values[pos] = low;
+            count++;
+            return this;
+        }
+
+        public boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, count, low) >= 0;
+        }
+    }
+
+    // a plain bitmap of all 65536 low values, for containers holding many values
+    private static final class BitmapContainer implements Container {
+        private final long[] words = new long[1 << 10];
+
+        public Container add(char low) {
+            words[low >>> 6] |= 1L << low;
+            return this;
+        }
+
+        public boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+    }
+
+    /**
+     * Add a value to the set
+     * @param value the value to add, >= 0
+     */
+    void add(int value) {
+        char high = (char) (value >>> 16);
+        char low = (char) value;
+
+        int pos = Arrays.binarySearch(keys, 0, size, high);
+        if (pos >= 0) {
+            containers[pos] = containers[pos].add(low);
+            return;
+        }
+
+        pos = -pos - 1;
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, 2 * size);
+            containers = Arrays.copyOf(containers, 2 * size);
+        }
+        System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+        System.arraycopy(containers, pos, containers, pos + 1, size - pos);
+        keys[pos] = high;
+        containers[pos] = new ArrayContainer().add(low);
+        size++;
+    }
+
+    /**
+     * Check whether a value is in the set
+     * @param value the value to check for, >= 0
+     * @return true if value has been added
+     */
+    boolean contains(int value) {
+        int pos = Arrays.binarySearch(keys, 0, size, (char) (value >>> 16));
+        return pos >= 0 && containers[pos].contains((char) value);
+    }
+}
@@ -0,0 +1,251 @@
+package main.java.pheme;
+
+import timedelayqueue.PubSubMessage;
+import timedelayqueue.TransientPubSubMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Description: A DeliveryIndex records which users each message has been delivered to, so that
+//              isDelivered queries are answered by lookups instead of searching inboxes.
+//              Every registered user is given a small, dense ordinal, and each message maps to
+//              a record holding a CompactBitmap of the ordinals of the users it has been delivered to.
+//              A record also counts the inboxes that still hold the message. Once that count reaches
+//              zero (every copy has been handed out or discarded with its inbox), or the message is a
+//              transient one past its lifetime, the record is retired, and it is pruned once it has
+//              been retired for the retention period; isDelivered then answers false for the message.
+//              A retired record is revived if the message is added to inboxes again before it is pruned.
+//              Messages restored from a snapshot are counted as their inboxes are restored.
+
+// Representation Invariant: No two registered users share an ordinal, and every ordinal is less than nextOrdinal.
+//                           Every bitmap in records only holds ordinals that have been handed out.
+//                           A record's retiredAt is Long.MAX_VALUE while its pending count is > 0,
+//                           and is only set once no sendMessage() is in progress for it.
+
+// Abstraction Function: AF(d) = the set of (message id, user id) pairs such that
+//                               d.records.get(message id).users contains d.ordinals.get(user id)
+
+// Thread safety: ordinals and records are concurrent maps and ordinals are handed out by an atomic
+//                counter. Each Record is only read or modified while holding its monitor, so
+//                deliveries of the same message to different users never lose an update.
+//                Pruning is done by whichever caller first finds that it is due, claimed with a
+//                compare-and-set on nextPrune, and removes a record while holding its monitor.
+
+class DeliveryIndex {
+
+    private final Map<UUID, Integer> ordinals = new ConcurrentHashMap<>();
+    private final Map<UUID, Record> records = new ConcurrentHashMap<>();
+    private final AtomicInteger nextOrdinal = new AtomicInteger();
+    private final long retention;
+    private final AtomicLong nextPrune;
+
+    // what is known about the delivery of one message
+    private static final class Record {
+        // when the message expires, or Long.MAX_VALUE if it is not transient
+        final long expiry;
+        // the users it has been delivered to, null until it is first delivered
+        CompactBitmap users;
+        // inboxes still holding the message; may dip below zero while it is being sent
+        int pending = 0;
+        // sends of the message in progress, which have not yet counted the inboxes they reached
+        int sending = 0;
+        // when the record was retired, or Long.MAX_VALUE if it has not been
+        long retiredAt = Long.MAX_VALUE;
+
+        Record(long expiry) {
+            this.expiry = expiry;
+        }
+
+        // retire the record once no inbox holds the message, or revive it if one does again
+        void updateRetirement(long now) {
+            if (sending > 0 || pending > 0) {
+                retiredAt = Long.MAX_VALUE;
+            } else if (retiredAt == Long.MAX_VALUE) {
+                retiredAt = now;
+            }
+        }
+
+        boolean isPrunable(long now, long retention) {
+            return now - retiredAt >= retention || now - expiry >= retention;
+        }
+    }
+
+    /**
+     * Create an empty DeliveryIndex
+     * @param retention how long, in milliseconds, a message's deliveries are remembered after
+     *                  it has left every inbox or expired, > 0
+     */
+    DeliveryIndex(long retention) {
+        this.retention = retention;
+        this.nextPrune = new AtomicLong(System.currentTimeMillis() + retention);
+    }
+
+    /**
+     * Give a user an ordinal so that deliveries to them can be recorded
+     * @param userID the user's id
+     */
+    void register(UUID userID) {
+        ordinals.computeIfAbsent(userID, id -> nextOrdinal.getAndIncrement());
+    }
+
+    /**
+     * Forget a user; deliveries recorded for them are no longer reported,
+     * even if a user with the same id registers again
+     * @param userID the user's id
+     */
+    void unregister(UUID userID) {
+        ordinals.remove(userID);
+    }
+
+    /**
+     * Start recording the deliveries of a message that is about to be added to inboxes;
+     * must be followed by sent() once it has been
+     * @param msg the message
+     */
+    void sending(PubSubMessage msg) {
+        long now = System.currentTimeMillis();
+        pruneIfDue(now);
+
+        long expiry = msg.isTransient()
+                ? msg.getTimestampMillis() + ((TransientPubSubMessage) msg).getLifetime()
+                : Long.MAX_VALUE;
+        Record record = records.computeIfAbsent(msg.getId(), id -> new Record(expiry));
+        synchronized (record) {
+            record.sending++;
+        }
+    }
+
+    /**
+     * Record the number of inboxes a message was added to, after sending()
+     * @param msgID the id of the message
+     * @param inboxes the number of inboxes the message was added to
+     */
+    void sent(UUID msgID, int inboxes) {
+        Record record = records.get(msgID);
+        if (record == null) {
+            return;
+        }
+        synchronized (record) {
+            record.sending--;
+            record.pending += inboxes;
+            record.updateRetirement(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Count an inbox restored from a snapshot that holds a message; called once for each
+     * such inbox, before any delivery of the message is recorded
+     * @param msgID the id of the message
+     * @param expiry when the message expires, or Long.MAX_VALUE if it is not transient
+     */
+    void restored(UUID msgID, long expiry) {
+        Record record = records.computeIfAbsent(msgID, id -> new Record(expiry));
+        synchronized (record) {
+            record.pending++;
+            record.updateRetirement(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Record that a message has been delivered to a user, taking it from their inbox
+     * @param msgID the id of the message
+     * @param userID the id of the registered user the message was handed to
+     */
+    void markDelivered(UUID msgID, UUID userID) {
+        long now = System.currentTimeMillis();
+        pruneIfDue(now);
+
+        Integer ordinal = ordinals.get(userID);
+        if (ordinal == null) {
+            return;
+        }
+
+        Record record = records.computeIfAbsent(msgID, id -> new Record(Long.MAX_VALUE));
+        synchronized (record) {
+            if (record.users == null) {
+                record.users = new CompactBitmap();
+            }
+            record.users.add(ordinal);
+            record.pending--;
+            record.updateRetirement(now);
+        }
+    }
+
+    /**
+     * Record that a message was discarded from an inbox without being delivered
+     * @param msgID the id of the message
+     */
+    void dropped(UUID msgID) {
+        Record record = records.get(msgID);
+        if (record == null) {
+            return;
+        }
+        synchronized (record) {
+            record.pending--;
+            record.updateRetirement(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Check whether a message has been delivered to a user
+     * @param msgID the id of the message
+     * @param userID the id of the user
+     * @return true if the message has been handed to the user
+     */
+    boolean isDelivered(UUID msgID, UUID userID) {
+        Record record = records.get(msgID);
+        Integer ordinal = ordinals.get(userID);
+        if (record == null || ordinal == null) {
+            return false;
+        }
+        synchronized (record) {
+            return record.users != null && record.users.contains(ordinal);
+        }
+    }
+
+    /**
+     * Check whether a message has been delivered to each of a list of users
+     * @param msgID the id of the message
+     * @param userList the ids of the users
+     * @return for each user, in order, true if the message has been handed to them
+     */
+    List<Boolean> isDelivered(UUID msgID, List<UUID> userList) {
+        List<Boolean> result = new ArrayList<>(userList.size());
+        Record record = records.get(msgID);
+        synchronized (record != null ? record : this) {
+            CompactBitmap users = record == null ? null : record.users;
+            for (UUID userID : userList) {
+                Integer ordinal = ordinals.get(userID);
+                result.add(users != null && ordinal != null && users.contains(ordinal));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of messages whose deliveries are recorded
+     * @return the number of records that have not been pruned
+     */
+    int size() {
+        return records.size();
+    }
+
+    // remove the records that have been retired or expired for the retention period,
+    // at most once per half the retention period
+    private void pruneIfDue(long now) {
+        long due = nextPrune.get();
+        if (now < due || !nextPrune.compareAndSet(due, now + retention / 2)) {
+            return;
+        }
+        records.values().removeIf(record -> {
+            synchronized (record) {
+                return record.sending == 0 && record.isPrunable(now, retention);
+            }
+        });
+    }
+}
@@ -0,0 +1,87 @@
+package main.java.pheme;
+
+import timedelayqueue.PubSubMessage;
+import timedelayqueue.ReceiverSet;
+
+import java.util.concurrent.RecursiveTask;
+
+// Description: A FanOutTask delivers one message to the inboxes of a range of its receivers,
+//              splitting the range in half until each piece is at most BATCH_SIZE receivers
+//              so the pieces can be delivered in parallel on a ForkJoinPool. Every inbox is
+//              given the same message instance; nothing is copied per receiver.
+//              A task returns the number of inboxes it added the message to.
+
+// Representation Invariant: 0 <= from <= to <= msg.getReceivers().size()
+
+// Abstraction Function: AF(t) = the delivery of t.msg to the receivers of t.msg with index in [t.from, t.to)
+
+// Thread safety: A FanOutTask only reads its immutable message and receiver set, and looks up
+//                and adds to inboxes through InboxStripes.deliver(), which is thread safe.
+//                Subtasks cover disjoint ranges of receivers.
+
+class FanOutTask extends RecursiveTask<Integer> {
+
+    private static final long serialVersionUID = 1L;
+
+    // Receivers delivered to by a single task before it is worth splitting
+    static final int BATCH_SIZE = 512;
+
+    private final InboxStripes inboxes;
+    private final PubSubMessage msg;
+    private final int from;
+    private final int to;
+
+    /**
+     * Create a task delivering a message to a range of its receivers
+     * @param inboxes the inboxes to deliver to
+     * @param msg the message to deliver
+     * @param from the index of the first receiver to deliver to, inclusive
+     * @param to the index of the last receiver to deliver to, exclusive
+     */
+    FanOutTask(InboxStripes inboxes, PubSubMessage msg, int from, int to) {
+        this.inboxes = inboxes;
+        this.msg = msg;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Deliver a message to its receivers, sequentially if there are few of them
+     * @param inboxes the inboxes to deliver to
+     * @param msg the message to deliver
+     * @return the number of receivers that have an inbox, and were given the message
+     */
+    static int deliver(InboxStripes inboxes, PubSubMessage msg) {
+        int receivers = msg.getReceivers().size();
+        if (receivers <= BATCH_SIZE) {
+            return deliverRange(inboxes, msg, 0, receivers);
+        }
+        return new FanOutTask(inboxes, msg, 0, receivers).invoke();
+    }
+
+    @Override
+    protected Integer compute() {
+        if (to - from <= BATCH_SIZE) {
+            return deliverRange(inboxes, msg, from, to);
+        }
+        int mid = (from + to) >>> 1;
+        FanOutTask first = new FanOutTask(inboxes, msg, from, mid);
+        first.fork();
+        int delivered = new FanOutTask(inboxes, msg, mid, to).compute();
+        return delivered + first.join();
+    }
+
+    // add msg to the inboxes of the receivers with index in [from, to) that are users,
+    // reading each receiver's id as bits so that no UUID is allocated per receiver
+    // returns the number of inboxes msg was added to
+    private static int deliverRange(InboxStripes inboxes, PubSubMessage msg, int from, int to) {
+        ReceiverSet receivers = msg.getReceivers();
+        int delivered = 0;
+        for (int i = from; i < to; i++) {
+            if (inboxes.deliver(receivers.mostSignificantBits(i), receivers.leastSignificantBits(i), msg)) {
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+}
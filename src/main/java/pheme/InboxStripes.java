@@ -0,0 +1,246 @@
+package main.java.pheme;
+
+import timedelayqueue.PubSubMessage;
+import timedelayqueue.TimeDelayQueue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// Description: InboxStripes holds one TimeDelayQueue inbox per user, spread over a fixed number
+//              of stripes by user id. Each stripe has its own lock, so looking up the inboxes of
+//              users on different stripes never contends, and once an inbox has been looked up
+//              it is used under its own lock only.
+//              Each stripe keeps its inboxes in an InboxTable, so deliver() can find a receiver's
+//              inbox from the bits of their id in a ReceiverSet without allocating a UUID.
+//              An inbox restored from a snapshot is kept as a saved inbox, still encoded, and only
+//              turned into a TimeDelayQueue the first time it is looked up, so restoring many users
+//              does not decode every inbox up front.
+//              Once change tracking has been started, InboxStripes also remembers which users' inboxes
+//              have been created, changed or removed, so that only those need to be saved again.
+
+// Representation Invariant: stripes.length is a power of two and never changes.
+//                           The inbox of a user is only ever in stripes[stripeOf(userID)].
+//                           No user has both an inbox and a saved inbox in the same stripe.
+
+// Abstraction Function: AF(s) = a map from user id to that user's inbox, the union of the inboxes
+//                               and the (decoded) saved inboxes of the stripes in s.stripes,
+//                               along with s.changed, the ids of users whose inbox changed since it was last drained
+
+// Thread safety: Each stripe's maps are only read or modified while holding that stripe's monitor,
+//                and a saved inbox is decoded into its TimeDelayQueue under the same monitor, so it
+//                is decoded at most once. The inboxes themselves are TimeDelayQueues, which are thread
+//                safe, so callers operate on an inbox after the stripe lock has been released; sending
+//                to one user and reading another user's inbox therefore never hold the same lock.
+//                changed is a concurrent set, so recording a change never takes a stripe lock.
+
+class InboxStripes {
+
+    private final Stripe[] stripes;
+    private final int delay;
+    private final Set<UUID> changed = ConcurrentHashMap.newKeySet();
+    private volatile boolean tracking = false;
+
+    // the inboxes of the users on one stripe, and the saved inboxes not yet decoded
+    private static final class Stripe {
+        final InboxTable inboxes = new InboxTable();
+        final Map<UUID, Supplier<List<PubSubMessage>>> saved = new HashMap<>();
+    }
+
+    /**
+     * Create inboxes spread over a number of stripes
+     * @param stripeCount the minimum number of stripes, > 0; rounded up to a power of two
+     * @param delay the delay, in milliseconds, of each inbox, >= 0
+     */
+    InboxStripes(int stripeCount, int delay) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.delay = delay;
+    }
+
+    /**
+     * Create an empty inbox for a user, unless the user already has one
+     * @param userID the user's id
+     * @return the user's inbox
+     */
+    TimeDelayQueue create(UUID userID) {
+        Stripe stripe = stripeOf(userID);
+        TimeDelayQueue inbox;
+        synchronized (stripe) {
+            inbox = lookup(stripe, userID);
+            if (inbox == null) {
+                inbox = new TimeDelayQueue(delay);
+                stripe.inboxes.put(userID, inbox);
+            }
+        }
+        markChanged(userID);
+        return inbox;
+    }
+
+    /**
+     * Give a user an inbox restored from a snapshot, to be decoded when it is first looked up,
+     * replacing any inbox the user had
+     * @param userID the user's id
+     * @param saved decodes the messages of the inbox, in the order getNext() would return them
+     */
+    void restore(UUID userID, Supplier<List<PubSubMessage>> saved) {
+        Stripe stripe = stripeOf(userID);
+        synchronized (stripe) {
+            stripe.inboxes.remove(userID);
+            stripe.saved.put(userID, saved);
+        }
+    }
+
+    /**
+     * Get the inbox of a user, decoding it first if it was restored from a snapshot
+     * @param userID the user's id
+     * @return the user's inbox, or null if the user has none
+     */
+    TimeDelayQueue get(UUID userID) {
+        Stripe stripe = stripeOf(userID);
+        synchronized (stripe) {
+            return lookup(stripe, userID);
+        }
+    }
+
+    /**
+     * Add a message to the inbox of a user given the bits of their id, decoding the inbox
+     * first if it was restored from a snapshot, and record that the inbox changed.
+     * A user id is only allocated if the user's inbox has not been decoded yet.
+     * @param msb the most significant bits of the user's id
+     * @param lsb the least significant bits of the user's id
+     * @param msg the message to add
+     * @return false if the user has no inbox, or it already holds a message with the same id
+     */
+    boolean deliver(long msb, long lsb, PubSubMessage msg) {
+        Stripe stripe = stripeOf(msb, lsb);
+        UUID userID;
+        TimeDelayQueue inbox;
+        synchronized (stripe) {
+            int slot = stripe.inboxes.find(msb, lsb);
+            if (slot >= 0) {
+                userID = stripe.inboxes.keyAt(slot);
+                inbox = stripe.inboxes.valueAt(slot);
+            } else if (stripe.saved.isEmpty()) {
+                return false;
+            } else {
+                userID = new UUID(msb, lsb);
+                inbox = lookup(stripe, userID);
+            }
+        }
+        if (inbox == null) {
+            return false;
+        }
+        if (!inbox.add(msg)) {
+            return false;
+        }
+        markChanged(userID);
+        return true;
+    }
+
+    /**
+     * Get the messages in a user's inbox, as TimeDelayQueue.snapshot() would, without decoding
+     * the inbox into a TimeDelayQueue if it was restored from a snapshot and not yet looked up
+     * @param userID the user's id
+     * @return the messages, in the order getNext() would return them, or null if the user has no inbox
+     */
+    List<PubSubMessage> snapshot(UUID userID) {
+        Stripe stripe = stripeOf(userID);
+        TimeDelayQueue inbox;
+        Supplier<List<PubSubMessage>> saved;
+        synchronized (stripe) {
+            inbox = stripe.inboxes.get(userID);
+            saved = stripe.saved.get(userID);
+        }
+        if (inbox != null) {
+            return inbox.snapshot();
+        }
+        return saved == null ? null : saved.get();
+    }
+
+    /**
+     * Discard the inbox of a user
+     * @param userID the user's id
+     * @return the user's inbox, or null if the user had none or its saved inbox had not been decoded
+     */
+    TimeDelayQueue remove(UUID userID) {
+        Stripe stripe = stripeOf(userID);
+        TimeDelayQueue inbox;
+        synchronized (stripe) {
+            inbox = stripe.inboxes.remove(userID);
+            stripe.saved.remove(userID);
+        }
+        markChanged(userID);
+        return inbox;
+    }
+
+    /**
+     * Record that a user's inbox has changed, if change tracking has been started
+     * @param userID the user's id
+     */
+    void markChanged(UUID userID) {
+        if (tracking) {
+            changed.add(userID);
+        }
+    }
+
+    /**
+     * Start recording which inboxes change; until then markChanged() does nothing
+     */
+    void startTracking() {
+        tracking = true;
+    }
+
+    /**
+     * Take the ids of the users whose inboxes have changed since the last call.
+     * A change recorded while the ids are being taken is either returned now
+     * or by the next call.
+     * @return the ids, in no particular order
+     */
+    List<UUID> drainChanged() {
+        List<UUID> ids = new ArrayList<>();
+        for (Iterator<UUID> it = changed.iterator(); it.hasNext(); ) {
+            ids.add(it.next());
+            it.remove();
+        }
+        return ids;
+    }
+
+    // the inbox of a user on stripe, decoding its saved inbox if it has not been looked up yet;
+    // the caller holds the stripe's monitor
+    private TimeDelayQueue lookup(Stripe stripe, UUID userID) {
+        TimeDelayQueue inbox = stripe.inboxes.get(userID);
+        if (inbox == null) {
+            Supplier<List<PubSubMessage>> saved = stripe.saved.get(userID);
+            if (saved != null) {
+                inbox = new TimeDelayQueue(delay);
+                inbox.addAll(saved.get());
+                stripe.saved.remove(userID);
+                stripe.inboxes.put(userID, inbox);
+            }
+        }
+        return inbox;
+    }
+
+    // the stripe a user's inbox lives on, spreading the bits of the id's hash
+    private Stripe stripeOf(UUID userID) {
+        return stripeOf(userID.getMostSignificantBits(), userID.getLeastSignificantBits());
+    }
+
+    // as stripeOf(new UUID(msb, lsb)), computing UUID.hashCode() from the bits
+    private Stripe stripeOf(long msb, long lsb) {
+        long hilo = msb ^ lsb;
+        int hash = ((int) (hilo >> 32)) ^ (int) hilo;
+        hash ^= (hash >>> 16);
+        return stripes[hash & (stripes.length - 1)];
+    }
+}
@@ -0,0 +1,149 @@
+package main.java.pheme;
+
+import timedelayqueue.TimeDelayQueue;
+
+import java.util.UUID;
+
+// Description: An InboxTable maps user ids to inboxes in an open-addressing hash table with
+//              linear probing. Besides lookups by UUID, it can find a user by the two longs of
+//              their id, so a ReceiverSet can be delivered to without allocating a UUID per
+//              receiver, and it hands back the UUID instance it stored for the user.
+
+// Representation Invariant: keys.length == values.length is a power of two, and size < keys.length * 3 / 4.
+//                           keys[i] == null if and only if values[i] == null.
+//                           Each key is at its home slot or after it, with no empty slot in between,
+//                           and no two slots hold equal keys.
+
+// Abstraction Function: AF(t) = { t.keys[i] -> t.values[i] : t.keys[i] != null }
+
+// Thread safety: InboxTable is not thread safe; InboxStripes only uses a table while holding
+//                the monitor of the stripe it belongs to.
+
+class InboxTable {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private UUID[] keys = new UUID[INITIAL_CAPACITY];
+    private TimeDelayQueue[] values = new TimeDelayQueue[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Find the slot of a user, given the bits of their id
+     * @param msb the most significant bits of the user's id
+     * @param lsb the least significant bits of the user's id
+     * @return the slot holding the user, or -1 if the user is not in the table
+     */
+    int find(long msb, long lsb) {
+        int mask = keys.length - 1;
+        for (int i = home(msb, lsb, mask); keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].getLeastSignificantBits() == lsb && keys[i].getMostSignificantBits() == msb) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the id stored in a slot
+     * @param slot a slot returned by find()
+     * @return the id, the same instance that was put in the table
+     */
+    UUID keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Get the inbox stored in a slot
+     * @param slot a slot returned by find()
+     * @return the inbox
+     */
+    TimeDelayQueue valueAt(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * Get the inbox of a user
+     * @param userID the user's id
+     * @return the user's inbox, or null if the user is not in the table
+     */
+    TimeDelayQueue get(UUID userID) {
+        int slot = find(userID.getMostSignificantBits(), userID.getLeastSignificantBits());
+        return slot < 0 ? null : values[slot];
+    }
+
+    /**
+     * Set the inbox of a user, replacing any inbox they had
+     * @param userID the user's id
+     * @param inbox the inbox, is not null
+     */
+    void put(UUID userID, TimeDelayQueue inbox) {
+        int slot = find(userID.getMostSignificantBits(), userID.getLeastSignificantBits());
+        if (slot >= 0) {
+            values[slot] = inbox;
+            return;
+        }
+        if (size + 1 >= keys.length * 3 / 4) {
+            resize(keys.length * 2);
+        }
+        insert(userID, inbox);
+        size++;
+    }
+
+    /**
+     * Remove a user from the table
+     * @param userID the user's id
+     * @return the user's inbox, or null if the user was not in the table
+     */
+    TimeDelayQueue remove(UUID userID) {
+        int slot = find(userID.getMostSignificantBits(), userID.getLeastSignificantBits());
+        if (slot < 0) {
+            return null;
+        }
+        TimeDelayQueue inbox = values[slot];
+
+        // shift back the entries after the slot that would no longer be reachable from their home
+        int mask = keys.length - 1;
+        int hole = slot;
+        for (int i = (slot + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+            int home = home(keys[i].getMostSignificantBits(), keys[i].getLeastSignificantBits(), mask);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        keys[hole] = null;
+        values[hole] = null;
+        size--;
+        return inbox;
+    }
+
+    private void insert(UUID userID, TimeDelayQueue inbox) {
+        int mask = keys.length - 1;
+        int i = home(userID.getMostSignificantBits(), userID.getLeastSignificantBits(), mask);
+        while (keys[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = userID;
+        values[i] = inbox;
+    }
+
+    private void resize(int capacity) {
+        UUID[] oldKeys = keys;
+        TimeDelayQueue[] oldValues = values;
+        keys = new UUID[capacity];
+        values = new TimeDelayQueue[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                insert(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    // the first slot to probe for an id; InboxStripes picks stripes from UUID.hashCode(),
+    // so the table mixes the id's bits differently to spread the users of one stripe
+    private static int home(long msb, long lsb, int mask) {
+        long hash = (msb ^ Long.rotateLeft(lsb, 32)) * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & mask;
+    }
+}
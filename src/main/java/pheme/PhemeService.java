@@ -1,87 +1,416 @@
 package main.java.pheme;
 
+import timedelayqueue.BasicMessageType;
 import timedelayqueue.PubSubMessage;
+import timedelayqueue.TimeDelayQueue;
 
 import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
-// TODO: write a description for this class
-// TODO: complete all methods, irrespective of whether there is an explicit TODO or not
-// TODO: write clear specs
-// TODO: State the rep invariant and abstraction function
-// TODO: what is the thread safety argument?
+// Description: A PhemeService lets registered users send PubSubMessages to one another and
+//              receive them, through a per-user inbox, once PhemeService.DELAY has elapsed.
+//              Every operation on behalf of a user is authenticated with the user's name and
+//              hashed password.
+//              The users and their pending messages can be saved to a directory with saveState() and
+//              restored with loadState(); saves after the first only write the users that changed.
+//              Users can subscribe to the tweets of Twitter users, optionally only those containing
+//              a pattern; each tweet passed to deliverTweet() is delivered to its subscribers.
+//              The service does not fetch tweets itself: TwitterListener cannot yet retrieve them,
+//              so deliverTweet() is the entry point for whatever component supplies them.
+
+// Representation Invariant: No two users share a userName or a userID.
+//                           usersByName and usersByID hold the same users, keyed by name and by id.
+//                           Every user has exactly one inbox in inboxes, and inboxes holds
+//                           no inbox for an id that is not a user's.
+//                           subscriptions holds no subscription of an id that is not a user's.
+
+// Abstraction Function: AF(s) = PhemeService such that
+//                          s.usersByName, s.usersByID = the registered users, indexed by name and by id
+//                          s.inboxes = for each user, the messages sent to them that they have not yet received
+//                          s.deliveries = the (message, user) pairs such that the message has been handed to the user
+//                          s.subscriptions = the tweets each user subscribes to, indexed by Twitter user
+//                          s.snapshots = where the state was last saved, or null if it has not been saved
+
+// Thread safety: The user indexes are concurrent maps, so lookups by name or id never lock.
+//                They are only modified while holding usersLock, so that addUser() checks both
+//                indexes and updates them as one step; a lookup that overlaps addUser() or
+//                removeUser() may find the user through one index before the other.
+//                The inboxes are spread over lock stripes by user id (see InboxStripes), and
+//                each inbox is a thread-safe TimeDelayQueue used outside of any stripe lock,
+//                so delivering to one user never contends with another user reading their inbox.
+//                sendMessage() fans out to many receivers in parallel on the common ForkJoinPool
+//                (see FanOutTask), and returns once every receiver's inbox holds the message.
+//                Deliveries are recorded in a DeliveryIndex, which is thread safe, after the
+//                message has been taken from the inbox. The index is told how many inboxes a
+//                message was added to, and which were discarded by removeUser(), so it can
+//                forget the message some time after it has left every inbox.
+//                Authentication is one lookup in usersByName and a comparison of the hashed passwords,
+//                so it never locks; a user can no longer authenticate once removeUser() has returned.
+//                Subscriptions are only added while holding usersLock and still registered,
+//                and cancelled in removeUser() while it is held. deliverTweet() routes through the
+//                SubscriptionIndex without locking and delivers like sendMessage().
+//                saveState() is synchronized on the service, so saves are captured one at a time.
+//                It captures each inbox with InboxStripes.snapshot() on the caller's thread and
+//                hands the records to the SnapshotStore's writer thread. A change made while a save
+//                is being captured is either in that save or recorded for the next one.
+//                Subscriptions are not part of the saved state.
 public class PhemeService {
 
     public static final int DELAY = 1000; // 1 second or 1000 milliseconds
+    private static final int INBOX_STRIPES = 4 * Runtime.getRuntime().availableProcessors();
+    private static final long DELIVERY_RETENTION = 10 * 60 * 1000; // 10 minutes
     private File twitterCredentialsFile;
-    private Set<PhemeServiceUser> users;
+    private final Object usersLock = new Object();
+    private Map<String, PhemeServiceUser> usersByName;
+    private Map<UUID, PhemeServiceUser> usersByID;
+    private InboxStripes inboxes;
+    private DeliveryIndex deliveries;
+    private SubscriptionIndex subscriptions;
+    private SnapshotStore snapshots;
 
     public PhemeService(File twitterCredentialsFile) {
         this.twitterCredentialsFile = twitterCredentialsFile;
-        this.users = new HashSet<>();
+        this.usersByName = new ConcurrentHashMap<>();
+        this.usersByID = new ConcurrentHashMap<>();
+        this.inboxes = new InboxStripes(INBOX_STRIPES, DELAY);
+        this.deliveries = new DeliveryIndex(DELIVERY_RETENTION);
+        this.subscriptions = new SubscriptionIndex();
     }
 
-    public void saveState(String configDirName) {
+    /**
+     * Restore a service from the state saved in a directory by saveState(); the users and
+     * their pending messages are restored, but not which messages have been delivered.
+     * The snapshot files are memory-mapped and each user's inbox is only decoded when it is
+     * first used, so the service is ready as soon as the users have been read.
+     * Later calls to saveState() with the same directory continue its chain of snapshots.
+     * @param twitterCredentialsFile the file holding the Twitter credentials
+     * @param configDirName the directory the state was saved to
+     * @return the restored service, with no users if nothing has been saved to the directory
+     * @throws java.io.UncheckedIOException if the saved state cannot be read
+     */
+    public static PhemeService loadState(File twitterCredentialsFile, String configDirName) {
+        PhemeService service = new PhemeService(twitterCredentialsFile);
+        File directory = new File(configDirName);
+        List<SnapshotStore.SavedUser> saved = SnapshotStore.load(directory);
+
+        saved.parallelStream().forEach(user -> {
+            service.usersByName.put(user.user.getUserName(), user.user);
+            service.usersByID.put(user.user.getUserID(), user.user);
+            service.inboxes.restore(user.user.getUserID(), user);
+            service.deliveries.register(user.user.getUserID());
+            user.forEachMessage(service.deliveries::restored);
+        });
+
+        service.snapshots = SnapshotStore.resume(directory);
+        service.inboxes.startTracking();
+        return service;
+    }
+
+    /**
+     * Save the users and their pending messages to a directory, from which loadState() can
+     * restore them. The state is captured before this method returns and written in the
+     * background. The first save to a directory writes every user; later saves mostly write
+     * only the users that were added, removed or whose inbox changed since the previous save.
+     * @param configDirName the directory to save to, created if it does not exist
+     */
+    public synchronized void saveState(String configDirName) {
+        File directory = new File(configDirName).getAbsoluteFile();
+        if (snapshots == null || !snapshots.getDirectory().equals(directory)) {
+            if (snapshots != null) {
+                snapshots.close();
+            }
+            snapshots = new SnapshotStore(directory);
+        }
+
+        // track changes from before the capture, so none made during it are lost
+        inboxes.startTracking();
+        List<UUID> changed = inboxes.drainChanged();
+        List<SnapshotStore.UserRecord> records = new ArrayList<>();
+        boolean base = snapshots.needsBase(changed.size(), usersByID.size());
+        if (base) {
+            for (PhemeServiceUser user : usersByID.values()) {
+                List<PubSubMessage> inbox = inboxes.snapshot(user.getUserID());
+                if (inbox != null) {
+                    records.add(new SnapshotStore.UserRecord(user.getUserID(), user, inbox));
+                }
+            }
+        } else {
+            for (UUID userID : changed) {
+                PhemeServiceUser user = usersByID.get(userID);
+                List<PubSubMessage> inbox = user == null ? null : inboxes.snapshot(userID);
+                records.add(inbox == null
+                        ? new SnapshotStore.UserRecord(userID, null, Collections.emptyList())
+                        : new SnapshotStore.UserRecord(userID, user, inbox));
+            }
+        }
+        snapshots.save(records, base);
+    }
 
+    /**
+     * Wait until the state captured by every saveState() call so far has been written
+     * @throws IOException if a save since the last call could not be written;
+     *                     the next saveState() then writes every user again
+     */
+    public void awaitStateSaved() throws IOException {
+        SnapshotStore store;
+        synchronized (this) {
+            store = snapshots;
+        }
+        if (store != null) {
+            store.await();
+        }
     }
 
+    /**
+     * Register a new user, with an empty inbox
+     * @param userID the id of the new user
+     * @param userName the name of the new user
+     * @param hashPassword the hashed password of the new user
+     * @return false if a user with the same name or id already exists
+     */
     public boolean addUser(UUID userID, String userName, String hashPassword) {
         PhemeServiceUser user = new PhemeServiceUser(userID, userName, hashPassword);
 
+        synchronized (usersLock) {
+            if (usersByName.containsKey(userName) || usersByID.containsKey(userID)) {
+                return false;
+            }
+            usersByName.put(userName, user);
+            usersByID.put(userID, user);
+            inboxes.create(userID);
+            deliveries.register(userID);
+        }
         return true;
     }
 
+    /**
+     * Remove a user, discarding their inbox
+     * @param userName the name of the user
+     * @param hashPassword the hashed password of the user
+     * @return false if the user does not exist or the password does not match
+     */
     public boolean removeUser(String userName, String hashPassword) {
+        synchronized (usersLock) {
+            PhemeServiceUser user = authenticate(userName, hashPassword);
+            if (user == null) {
+                return false;
+            }
+            usersByName.remove(userName);
+            usersByID.remove(user.getUserID());
+            subscriptions.cancelAll(user.getUserID());
+            TimeDelayQueue inbox = inboxes.remove(user.getUserID());
+            if (inbox != null) {
+                for (PubSubMessage msg : inbox.snapshot()) {
+                    deliveries.dropped(msg.getId());
+                }
+            }
+            deliveries.unregister(user.getUserID());
+        }
         return true;
     }
 
+    /**
+     * Cancel a user's subscription to a Twitter user, including any to patterns
+     * @param userName the name of the user
+     * @param hashPassword the hashed password of the user
+     * @param twitterUserName the name of the Twitter user, ignoring case
+     * @return false if the user cannot be authenticated or does not subscribe to the Twitter user
+     */
     public boolean cancelSubscription(String userName,
                                       String hashPassword,
                                       String twitterUserName) {
-        return false;
+        PhemeServiceUser user = authenticate(userName, hashPassword);
+        return user != null && subscriptions.cancel(user.getUserID(), twitterUserName);
     }
 
+    /**
+     * Cancel a user's subscription to a pattern from a Twitter user
+     * @param userName the name of the user
+     * @param hashPassword the hashed password of the user
+     * @param twitterUserName the name of the Twitter user, ignoring case
+     * @param pattern the pattern subscribed to, ignoring case
+     * @return false if the user cannot be authenticated or does not subscribe
+     *         to the pattern from the Twitter user
+     */
     public boolean cancelSubscription(String userName,
                                       String hashPassword,
                                       String twitterUserName,
                                       String pattern) {
-        return false;
+        PhemeServiceUser user = authenticate(userName, hashPassword);
+        return user != null && subscriptions.cancel(user.getUserID(), twitterUserName, pattern);
     }
 
+    /**
+     * Subscribe a user to every tweet by a Twitter user
+     * @param userName the name of the user
+     * @param hashPassword the hashed password of the user
+     * @param twitterUserName the name of the Twitter user, ignoring case
+     * @return false if the user cannot be authenticated or already subscribes
+     *         to every tweet by the Twitter user
+     */
     public boolean addSubscription(String userName, String hashPassword,
                                    String twitterUserName) {
-        return false;
+        PhemeServiceUser user = authenticate(userName, hashPassword);
+        if (user == null) {
+            return false;
+        }
+        synchronized (usersLock) {
+            return usersByID.get(user.getUserID()) == user
+                    && subscriptions.subscribe(user.getUserID(), twitterUserName);
+        }
     }
 
+    /**
+     * Subscribe a user to the tweets by a Twitter user whose text contains a pattern
+     * @param userName the name of the user
+     * @param hashPassword the hashed password of the user
+     * @param twitterUserName the name of the Twitter user, ignoring case
+     * @param pattern the text a tweet must contain, ignoring case
+     * @return false if the user cannot be authenticated or already subscribes
+     *         to the pattern from the Twitter user
+     */
     public boolean addSubscription(String userName, String hashPassword,
                                    String twitterUserName,
                                    String pattern) {
-        return false;
+        PhemeServiceUser user = authenticate(userName, hashPassword);
+        if (user == null) {
+            return false;
+        }
+        synchronized (usersLock) {
+            return usersByID.get(user.getUserID()) == user
+                    && subscriptions.subscribe(user.getUserID(), twitterUserName, pattern);
+        }
     }
 
+    /**
+     * Deliver a tweet to every user that subscribes to it: those subscribed to every
+     * tweet by its author, and those subscribed to a pattern that its text contains.
+     * The subscribers are found with one lookup of the author, and share one message.
+     * @param twitterUserName the name of the Twitter user who made the tweet
+     * @param createdAt when the tweet was made, the timestamp of the message
+     * @param text the text of the tweet, which patterns are matched against
+     * @param content the content of the message, usually the tweet as JSON
+     * @return the number of users the tweet was delivered to
+     */
+    public int deliverTweet(String twitterUserName, Timestamp createdAt, String text, String content) {
+        List<UUID> receivers = subscriptions.route(twitterUserName, text);
+        if (receivers.isEmpty()) {
+            return 0;
+        }
+
+        // a tweet is not sent by a user of this service
+        PubSubMessage msg = new PubSubMessage(UUID.randomUUID(), createdAt, PubSubMessage.ZERO_UUID,
+                receivers, content, BasicMessageType.TWEET);
+        deliveries.sending(msg);
+        deliveries.sent(msg.getId(), FanOutTask.deliver(inboxes, msg));
+        return receivers.size();
+    }
+
+    /**
+     * Send a message to each of its receivers that is a user of this service;
+     * a message with many receivers is delivered to them in parallel, and every
+     * inbox shares the one message instance
+     * @param userName the name of the sender
+     * @param hashPassword the hashed password of the sender
+     * @param msg the message, whose sender is the user's id
+     * @return false if the user cannot be authenticated or is not the sender of msg
+     */
     public boolean sendMessage(String userName,
                                String hashPassword,
                                PubSubMessage msg) {
-        return false;
+        PhemeServiceUser user = authenticate(userName, hashPassword);
+        if (user == null || !user.getUserID().equals(msg.getSender())) {
+            return false;
+        }
+
+        deliveries.sending(msg);
+        deliveries.sent(msg.getId(), FanOutTask.deliver(inboxes, msg));
+        return true;
     }
 
+    /**
+     * Check whether a message has been delivered to each of a list of users,
+     * that is, handed to them by getNext() or getAllRecent(). Deliveries of a message are
+     * forgotten some time after it has left every inbox or its lifetime has passed.
+     * @param msgID the id of the message
+     * @param userList the ids of the users
+     * @return for each user, in order, true if the message has been delivered to them
+     */
     public List<Boolean> isDelivered(UUID msgID, List<UUID> userList) {
-        return new ArrayList<Boolean>();
+        return deliveries.isDelivered(msgID, userList);
     }
 
+    /**
+     * Check whether a message has been delivered to a user,
+     * that is, handed to them by getNext() or getAllRecent(). Deliveries of a message are
+     * forgotten some time after it has left every inbox or its lifetime has passed.
+     * @param msgID the id of the message
+     * @param user the id of the user
+     * @return true if the message has been delivered to the user
+     */
     public boolean isDelivered(UUID msgID, UUID user) {
-        return false;
+        return deliveries.isDelivered(msgID, user);
     }
 
+    /**
+     * Check whether a user exists
+     * @param userName the name of the user
+     * @return true if a user with that name exists
+     */
     public boolean isUser(String userName) {
-        return false;
+        return usersByName.containsKey(userName);
     }
 
+    /**
+     * Get the next message in a user's inbox whose delay has elapsed
+     * @param userName the name of the user
+     * @param hashPassword the hashed password of the user
+     * @return the next message, or PubSubMessage.NO_MSG if there is none or
+     *         the user cannot be authenticated
+     */
     public PubSubMessage getNext(String userName, String hashPassword) {
-        return PubSubMessage.NO_MSG;
+        PhemeServiceUser user = authenticate(userName, hashPassword);
+        TimeDelayQueue inbox = user == null ? null : inboxes.get(user.getUserID());
+        if (inbox == null) {
+            return PubSubMessage.NO_MSG;
+        }
+
+        PubSubMessage msg = inbox.getNext();
+        if (msg != PubSubMessage.NO_MSG) {
+            inboxes.markChanged(user.getUserID());
+            deliveries.markDelivered(msg.getId(), user.getUserID());
+        }
+        return msg;
     }
 
+    /**
+     * Get every message in a user's inbox whose delay has elapsed
+     * @param userName the name of the user
+     * @param hashPassword the hashed password of the user
+     * @return the messages, in the order they would be returned by getNext(),
+     *         or an empty list if the user cannot be authenticated
+     */
     public List<PubSubMessage> getAllRecent(String userName, String hashPassword) {
-        return new ArrayList<PubSubMessage>();
+        List<PubSubMessage> recent = new ArrayList<PubSubMessage>();
+        PhemeServiceUser user = authenticate(userName, hashPassword);
+        TimeDelayQueue inbox = user == null ? null : inboxes.get(user.getUserID());
+        if (inbox != null) {
+            if (inbox.drainTo(recent, Integer.MAX_VALUE) > 0) {
+                inboxes.markChanged(user.getUserID());
+            }
+            for (PubSubMessage msg : recent) {
+                deliveries.markDelivered(msg.getId(), user.getUserID());
+            }
+        }
+        return recent;
+    }
+
+    // the user with the given name and hashed password, or null if there is none
+    private PhemeServiceUser authenticate(String userName, String hashPassword) {
+        PhemeServiceUser user = usersByName.get(userName);
+        return user != null && user.getHashPassword().equals(hashPassword) ? user : null;
     }
-}
\ No newline at end of file
+}
@@ -1,15 +1,45 @@
 package main.java.pheme;
 
+import java.util.Objects;
 import java.util.UUID;
 
 public class PhemeServiceUser {
-    private UUID userID;
-    private String userName;
-    private String hashPassword;
+    private final UUID userID;
+    private final String userName;
+    private final String hashPassword;
 
     public PhemeServiceUser(UUID userID, String userName, String hashPassword) {
         this.userID = userID;
         this.userName = userName;
-        this. hashPassword = hashPassword;
+        this.hashPassword = hashPassword;
+    }
+
+    public UUID getUserID() {
+        return userID;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public String getHashPassword() {
+        return hashPassword;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof PhemeServiceUser) {
+            PhemeServiceUser that = (PhemeServiceUser) other;
+            return this.userID.equals(that.userID)
+                && this.userName.equals(that.userName)
+                && this.hashPassword.equals(that.hashPassword);
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(userID, userName, hashPassword);
     }
 }
@@ -0,0 +1,650 @@
+package main.java.pheme;
+
+import timedelayqueue.PubSubMessage;
+import timedelayqueue.PubSubMessageCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+// Description: A SnapshotStore saves the state of a PhemeService to a directory as a chain of
+//              snapshot files: a base snapshot holding a record for every user, followed by delta
+//              snapshots holding records only for the users that changed since the previous save.
+//              A user's record is their name, hashed password and pending inbox messages, or a
+//              removal marker for a user that no longer exists. Files are written by a single
+//              background thread, so a save only costs its caller the time to capture the records.
+//
+//              Each file is named base-<generation>.snap or delta-<generation>.snap and is laid out
+//              as [int MAGIC][byte VERSION][long generation], then a message table, then records.
+//              The message table is [int length in bytes] followed by messages, each as [int length]
+//              [message in PubSubMessageCodec's format]; it holds every message in the file's inboxes
+//              once, so a message sent to many users is written once, not once per receiver. Each
+//              record is [int length][byte kind][16-byte user id][payload], where length covers the
+//              kind, id and payload. The payload of a USER record is [int length][UTF-8 name],
+//              [int length][UTF-8 hashed password], [int count] and count int offsets, from the start
+//              of the file, of the inbox's messages in the table. A REMOVED record has no payload.
+//              Files are written under a temporary name, forced to disk and then renamed, so a
+//              crash never leaves a partial snapshot behind. Generations are consecutive, so a
+//              missing delta shows up as a gap in the chain. Once a write fails, the writer refuses
+//              every delta until a base has been written, so no delta is ever written after a gap.
+//
+//              Loading memory-maps the files and only reads as much as it needs to know the users:
+//              each user's inbox is decoded from the mapped file the first time it is asked for.
+
+// Representation Invariant: Every file written by this store has a generation less than nextGeneration.
+//                           deltasSinceBase counts the deltas written since the latest base, and is 0
+//                           before the first base. needsBase is true until a base has been written and
+//                           again after any write fails, since the chain of deltas is then broken.
+//                           chainBroken is true from a failed write until the next base is written.
+//                           Every chain of files on disk is a base followed by deltas with consecutive
+//                           generations.
+
+// Abstraction Function: AF(s) = the state in s.directory: for each user id, the record in the file
+//                               with the highest generation, at or after the latest base, that holds
+//                               a record for that id
+
+// Thread safety: save() and await() are synchronized on the SnapshotStore, so generations are handed
+//                out in the order saves are captured. Files are written one at a time, in submission
+//                order, by the single writer thread, which alone uses chainBroken. needsBase and
+//                failure are volatile because the writer sets them when a write fails.
+
+class SnapshotStore {
+
+    // Number of deltas written after a base before the next save writes a new base
+    static final int MAX_DELTAS = 32;
+
+    private static final int MAGIC = 0x50484D53; // "PHMS"
+    private static final byte VERSION = 2;
+    private static final byte USER = 1;
+    private static final byte REMOVED = 2;
+    private static final int FILE_HEADER_SIZE = Integer.BYTES + 1 + Long.BYTES;
+    private static final String BASE_PREFIX = "base-";
+    private static final String DELTA_PREFIX = "delta-";
+    private static final String SUFFIX = ".snap";
+
+    private final File directory;
+    private final ExecutorService writer;
+    private final List<Future<?>> pending = new ArrayList<>();
+    private long nextGeneration;
+    private int deltasSinceBase;
+    private volatile boolean needsBase;
+    private volatile IOException failure;
+    private boolean chainBroken = false;
+
+    /**
+     * The saved state of one user
+     */
+    static final class UserRecord {
+        final UUID userID;
+        final PhemeServiceUser user;
+        final List<PubSubMessage> inbox;
+
+        /**
+         * @param userID the user's id
+         * @param user the user, or null if the user has been removed
+         * @param inbox the messages pending in the user's inbox, in the order getNext() would
+         *              return them; empty if the user has been removed
+         */
+        UserRecord(UUID userID, PhemeServiceUser user, List<PubSubMessage> inbox) {
+            this.userID = userID;
+            this.user = user;
+            this.inbox = inbox;
+        }
+    }
+
+    /**
+     * A user restored from a snapshot, whose inbox is still encoded in the mapped file;
+     * get() decodes the messages pending in the user's inbox, in the order getNext()
+     * would return them, each time it is called
+     */
+    static final class SavedUser implements Supplier<List<PubSubMessage>> {
+        final PhemeServiceUser user;
+        private final MappedSnapshot snapshot;
+        private final int inboxOffset;
+
+        private SavedUser(PhemeServiceUser user, MappedSnapshot snapshot, int inboxOffset) {
+            this.user = user;
+            this.snapshot = snapshot;
+            this.inboxOffset = inboxOffset;
+        }
+
+        @Override
+        public List<PubSubMessage> get() {
+            return snapshot.inbox(inboxOffset);
+        }
+
+        /**
+         * Call action with the id and expiry of each message pending in the user's inbox,
+         * without decoding the messages
+         * @param action takes the message id and its expiry, as PubSubMessageCodec.decodeExpiry() reads it
+         */
+        void forEachMessage(ObjLongConsumer<UUID> action) {
+            snapshot.forEachMessage(inboxOffset, action);
+        }
+    }
+
+    /**
+     * Create a store that saves into a directory, continuing after any snapshots already there;
+     * the first save writes a base
+     * @param directory the directory to save into, created on the first save if it does not exist
+     */
+    SnapshotStore(File directory) {
+        this(directory, latestGeneration(directory) + 1, 0, true);
+    }
+
+    private SnapshotStore(File directory, long nextGeneration, int deltasSinceBase, boolean needsBase) {
+        this.directory = directory.getAbsoluteFile();
+        this.nextGeneration = nextGeneration;
+        this.deltasSinceBase = deltasSinceBase;
+        this.needsBase = needsBase;
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "pheme-snapshot-writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return the directory this store saves into
+     */
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Stop the writer thread once the saves already submitted have been written
+     */
+    void close() {
+        writer.shutdown();
+    }
+
+    /**
+     * @param changedUsers the number of users that changed since the last save
+     * @param totalUsers the number of users
+     * @return true if the next save must be a base rather than a delta
+     */
+    synchronized boolean needsBase(int changedUsers, int totalUsers) {
+        return needsBase || deltasSinceBase >= MAX_DELTAS || changedUsers > totalUsers / 2;
+    }
+
+    /**
+     * Write records in the background, as a base or as a delta on the snapshots already written.
+     * A delta is not written if an earlier write has failed and no base has been written since;
+     * the failure is reported by await().
+     * @param records the records, captured by the caller; a base must hold every user
+     * @param base true to write a base, which replaces every earlier file once written
+     */
+    synchronized void save(List<UserRecord> records, boolean base) {
+        long generation = nextGeneration++;
+        if (base) {
+            deltasSinceBase = 0;
+            needsBase = false;
+        } else {
+            deltasSinceBase++;
+        }
+        pending.removeIf(Future::isDone);
+        pending.add(writer.submit(() -> {
+            // a delta queued before an earlier write failed would follow a gap in the chain
+            if (chainBroken && !base) {
+                return;
+            }
+            try {
+                write(records, base, generation);
+                chainBroken = false;
+            } catch (IOException | RuntimeException e) {
+                chainBroken = true;
+                needsBase = true;
+                if (failure == null) {
+                    failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Wait until every save submitted so far has been written
+     * @throws IOException if a save since the last call could not be written
+     */
+    synchronized void await() throws IOException {
+        for (Future<?> write : pending) {
+            try {
+                write.get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for snapshots", e);
+            }
+        }
+        pending.clear();
+
+        IOException failed = failure;
+        if (failed != null) {
+            failure = null;
+            throw failed;
+        }
+    }
+
+    // write records to a new snapshot file, and if it is a base delete the files it replaces
+    private void write(List<UserRecord> records, boolean base, long generation) throws IOException {
+        Path dir = directory.toPath();
+        Files.createDirectories(dir);
+        String name = fileName(base, generation);
+        Path tmp = dir.resolve(name + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            // every distinct message, identified by id, in the order first referenced
+            Map<UUID, PubSubMessage> table = new LinkedHashMap<>();
+            for (UserRecord record : records) {
+                for (PubSubMessage msg : record.inbox) {
+                    table.putIfAbsent(msg.getId(), msg);
+                }
+            }
+
+            long tableLength = 0;
+            for (PubSubMessage msg : table.values()) {
+                tableLength += Integer.BYTES + PubSubMessageCodec.encodedSize(msg);
+            }
+            if (FILE_HEADER_SIZE + Integer.BYTES + tableLength > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot message table is too large: " + tableLength + " bytes");
+            }
+
+            // the offset of each message in the file, which the records refer to it by
+            Map<UUID, Integer> offsets = new HashMap<>();
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            buffer.putInt(MAGIC).put(VERSION).putLong(generation);
+            buffer.putInt((int) tableLength);
+            for (PubSubMessage msg : table.values()) {
+                int size = PubSubMessageCodec.encodedSize(msg);
+                buffer = reserve(channel, buffer, Integer.BYTES + size);
+                offsets.put(msg.getId(), (int) (channel.position() + buffer.position()));
+                buffer.putInt(size);
+                PubSubMessageCodec.encode(msg, buffer);
+            }
+            for (UserRecord record : records) {
+                int size = recordSize(record);
+                buffer = reserve(channel, buffer, Integer.BYTES + size);
+                buffer.putInt(size);
+                putRecord(record, offsets, buffer);
+            }
+            buffer.flip();
+            writeFully(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+
+        if (base) {
+            for (File file : snapshotFiles(directory)) {
+                if (generationOf(file) < generation) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+        }
+    }
+
+    // a buffer with at least size bytes remaining, flushing buffer to channel if it is short of room
+    private static ByteBuffer reserve(FileChannel channel, ByteBuffer buffer, int size) throws IOException {
+        if (buffer.remaining() >= size) {
+            return buffer;
+        }
+        buffer.flip();
+        writeFully(channel, buffer);
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // the number of bytes putRecord() writes for record
+    private static int recordSize(UserRecord record) {
+        int size = 1 + 2 * Long.BYTES;
+        if (record.user != null) {
+            size += Integer.BYTES + utf8Length(record.user.getUserName());
+            size += Integer.BYTES + utf8Length(record.user.getHashPassword());
+            size += Integer.BYTES + record.inbox.size() * Integer.BYTES;
+        }
+        return size;
+    }
+
+    private static void putRecord(UserRecord record, Map<UUID, Integer> offsets, ByteBuffer buffer) {
+        buffer.put(record.user == null ? REMOVED : USER);
+        buffer.putLong(record.userID.getMostSignificantBits());
+        buffer.putLong(record.userID.getLeastSignificantBits());
+        if (record.user != null) {
+            putString(record.user.getUserName(), buffer);
+            putString(record.user.getHashPassword(), buffer);
+            buffer.putInt(record.inbox.size());
+            for (PubSubMessage msg : record.inbox) {
+                buffer.putInt(offsets.get(msg.getId()));
+            }
+        }
+    }
+
+    private static int utf8Length(String s) {
+        return s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void putString(String s, ByteBuffer buffer) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read the users saved in a directory, replaying the latest base and the deltas after it.
+     * The files are memory-mapped and only the latest record of each user is read, in parallel;
+     * inboxes are left encoded in the mapped files until they are asked for.
+     * @param directory the directory saved into
+     * @return the saved users, removed users left out
+     * @throws UncheckedIOException if the snapshots cannot be read or are malformed,
+     *                              or a delta is missing from the chain
+     */
+    static List<SavedUser> load(File directory) {
+        List<File> chain = chain(directory);
+        if (chain.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // the deltas, newest first, hold the latest records of the few users that changed;
+        // every other user's latest record is in the base
+        Map<UUID, RecordRef> changed = new HashMap<>();
+        for (int i = chain.size() - 1; i > 0; i--) {
+            MappedSnapshot delta = new MappedSnapshot(chain.get(i));
+            delta.forEachRecord((userID, offset) -> changed.putIfAbsent(userID, new RecordRef(delta, offset)));
+        }
+
+        MappedSnapshot base = new MappedSnapshot(chain.get(0));
+        int[] offsets = base.recordOffsets(changed.keySet());
+
+        List<SavedUser> users = IntStream.range(0, offsets.length).parallel()
+                .mapToObj(i -> decode(base, offsets[i]))
+                .filter(saved -> saved != null)
+                .collect(Collectors.toCollection(ArrayList::new));
+        for (RecordRef ref : changed.values()) {
+            SavedUser saved = decode(ref.snapshot, ref.offset);
+            if (saved != null) {
+                users.add(saved);
+            }
+        }
+        return users;
+    }
+
+    // a record in a mapped snapshot, at offset just past its length
+    private static final class RecordRef {
+        final MappedSnapshot snapshot;
+        final int offset;
+
+        RecordRef(MappedSnapshot snapshot, int offset) {
+            this.snapshot = snapshot;
+            this.offset = offset;
+        }
+    }
+
+    // a memory-mapped snapshot file; each message is decoded once, when an inbox holding it is
+    // first decoded, and shared by every inbox that holds it
+    private static final class MappedSnapshot {
+        final File file;
+        final ByteBuffer contents;
+        private final Map<Integer, PubSubMessage> decoded = new ConcurrentHashMap<>();
+
+        MappedSnapshot(File file) {
+            this.file = file;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Snapshot too large to map: " + file);
+                }
+                this.contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // the message whose [int length] prefix is at offset
+        PubSubMessage message(int offset) {
+            return decoded.computeIfAbsent(offset, o -> {
+                ByteBuffer msg = contents.duplicate();
+                msg.position(o);
+                return PubSubMessageCodec.decode(slice(msg));
+            });
+        }
+
+        // call action with the user id and offset, just past its length, of each record in the file
+        void forEachRecord(ObjIntConsumer<UUID> action) {
+            ByteBuffer contents = records();
+            while (contents.hasRemaining()) {
+                int size = contents.getInt();
+                int offset = contents.position();
+                action.accept(new UUID(contents.getLong(offset + 1), contents.getLong(offset + 1 + Long.BYTES)), offset);
+                contents.position(offset + size);
+            }
+        }
+
+        // the offsets, just past their lengths, of the records in the file of users not in excluded
+        int[] recordOffsets(Set<UUID> excluded) {
+            ByteBuffer contents = records();
+            int[] offsets = new int[1024];
+            int count = 0;
+            while (contents.hasRemaining()) {
+                int size = contents.getInt();
+                int offset = contents.position();
+                if (excluded.isEmpty() || !excluded.contains(
+                        new UUID(contents.getLong(offset + 1), contents.getLong(offset + 1 + Long.BYTES)))) {
+                    if (count == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, count * 2);
+                    }
+                    offsets[count++] = offset;
+                }
+                contents.position(offset + size);
+            }
+            return Arrays.copyOf(offsets, count);
+        }
+
+        // the contents positioned at the first record, once the header has been checked
+        private ByteBuffer records() {
+            ByteBuffer contents = this.contents.duplicate();
+            try {
+                checkHeader(contents, file);
+                int tableLength = contents.getInt();
+                contents.position(contents.position() + tableLength);
+                return contents;
+            } catch (RuntimeException e) {
+                throw new UncheckedIOException(new IOException("Malformed snapshot " + file, e));
+            }
+        }
+
+        // call action with the id and expiry of each message in the inbox whose [int count] is at offset
+        void forEachMessage(int offset, ObjLongConsumer<UUID> action) {
+            try {
+                ByteBuffer refs = contents.duplicate();
+                refs.position(offset);
+                int count = refs.getInt();
+                for (int i = 0; i < count; i++) {
+                    ByteBuffer msg = contents.duplicate();
+                    msg.position(refs.getInt());
+                    msg = slice(msg);
+                    action.accept(PubSubMessageCodec.decodeId(msg), PubSubMessageCodec.decodeExpiry(msg));
+                }
+            } catch (RuntimeException e) {
+                throw new UncheckedIOException(new IOException("Malformed snapshot " + file, e));
+            }
+        }
+
+        // the inbox whose [int count] is at offset
+        List<PubSubMessage> inbox(int offset) {
+            try {
+                ByteBuffer refs = contents.duplicate();
+                refs.position(offset);
+                int count = refs.getInt();
+                List<PubSubMessage> inbox = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    inbox.add(message(refs.getInt()));
+                }
+                return inbox;
+            } catch (RuntimeException e) {
+                throw new UncheckedIOException(new IOException("Malformed snapshot " + file, e));
+            }
+        }
+    }
+
+    // the length-prefixed block at the position of contents, leaving contents just past it
+    private static ByteBuffer slice(ByteBuffer contents) {
+        int size = contents.getInt();
+        ByteBuffer block = contents.slice();
+        block.limit(size);
+        contents.position(contents.position() + size);
+        return block;
+    }
+
+    // the user in the record at offset in snapshot, laid out by putRecord(),
+    // or null if it is a REMOVED record
+    private static SavedUser decode(MappedSnapshot snapshot, int offset) {
+        ByteBuffer record = snapshot.contents.duplicate();
+        record.position(offset);
+        try {
+            byte kind = record.get();
+            UUID userID = new UUID(record.getLong(), record.getLong());
+            if (kind == REMOVED) {
+                return null;
+            }
+            if (kind != USER) {
+                throw new IllegalArgumentException("Unknown record kind " + kind);
+            }
+
+            String userName = getString(record);
+            String hashPassword = getString(record);
+            return new SavedUser(new PhemeServiceUser(userID, userName, hashPassword), snapshot, record.position());
+        } catch (RuntimeException e) {
+            throw new UncheckedIOException(new IOException("Malformed snapshot " + snapshot.file, e));
+        }
+    }
+
+    private static void checkHeader(ByteBuffer contents, File file) {
+        if (contents.remaining() < FILE_HEADER_SIZE || contents.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a snapshot: " + file);
+        }
+        byte version = contents.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported snapshot version " + version + ": " + file);
+        }
+        contents.getLong();
+    }
+
+    // the latest base in directory followed by the deltas after it, oldest first
+    // throws UncheckedIOException if a generation is missing from the deltas
+    private static List<File> chain(File directory) {
+        List<File> files = snapshotFiles(directory);
+        long base = -1;
+        for (File file : files) {
+            if (file.getName().startsWith(BASE_PREFIX)) {
+                base = Math.max(base, generationOf(file));
+            }
+        }
+
+        List<File> chain = new ArrayList<>();
+        if (base < 0) {
+            return chain;
+        }
+        for (File file : files) {
+            if (generationOf(file) >= base
+                    && (generationOf(file) == base || file.getName().startsWith(DELTA_PREFIX))) {
+                chain.add(file);
+            }
+        }
+        chain.sort((f1, f2) -> Long.compare(generationOf(f1), generationOf(f2)));
+        for (int i = 1; i < chain.size(); i++) {
+            long expected = generationOf(chain.get(i - 1)) + 1;
+            if (generationOf(chain.get(i)) != expected) {
+                throw new UncheckedIOException(new IOException(
+                        "Missing snapshot " + fileName(false, expected) + " in " + directory));
+            }
+        }
+        return chain;
+    }
+
+    // the completed snapshot files in directory, in no particular order
+    private static List<File> snapshotFiles(File directory) {
+        List<File> files = new ArrayList<>();
+        File[] listed = directory.listFiles();
+        if (listed == null) {
+            return files;
+        }
+        for (File file : listed) {
+            String name = file.getName();
+            if ((name.startsWith(BASE_PREFIX) || name.startsWith(DELTA_PREFIX)) && name.endsWith(SUFFIX)) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private static long latestGeneration(File directory) {
+        long latest = -1;
+        for (File file : snapshotFiles(directory)) {
+            latest = Math.max(latest, generationOf(file));
+        }
+        return latest;
+    }
+
+    private static String fileName(boolean base, long generation) {
+        return String.format("%s%020d%s", base ? BASE_PREFIX : DELTA_PREFIX, generation, SUFFIX);
+    }
+
+    private static long generationOf(File file) {
+        String name = file.getName();
+        int start = name.indexOf('-') + 1;
+        return Long.parseLong(name.substring(start, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Create a store that continues the chain of snapshots a PhemeService was just loaded from,
+     * so that the next save can be a delta
+     * @param directory the directory the service was loaded from
+     * @return the store
+     */
+    static SnapshotStore resume(File directory) {
+        List<File> chain = chain(directory);
+        if (chain.isEmpty()) {
+            return new SnapshotStore(directory);
+        }
+        return new SnapshotStore(directory, latestGeneration(directory) + 1, chain.size() - 1, false);
+    }
+}
@@ -0,0 +1,299 @@
+package main.java.pheme;
+
+import twitter.PatternMatcher;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Description: A SubscriptionIndex records which users subscribe to the tweets of each Twitter user,
+//              indexed by the Twitter user. A subscriber either receives every tweet by the author,
+//              or only those whose text contains one of their patterns, ignoring case.
+//              Each author has a Route: the subscribers to every tweet, and one PatternMatcher over
+//              the distinct patterns of all the other subscribers, where each pattern carries the
+//              subscribers that want it. Routing a tweet is one lookup of its author and one scan
+//              of its text, however many subscribers and patterns the author has. A change to an
+//              author's subscriptions marks their Route stale, and the next tweet routed for them
+//              rebuilds it, so a batch of subscriptions costs one rebuild rather than one each.
+//              Twitter user names and patterns are compared ignoring case; patterns are folded
+//              with PatternMatcher.fold(), the way the matcher folds the text.
+
+// Representation Invariant: Every key of byAuthor and every author in bySubscriber is lower case.
+//                           Every pattern is folded by PatternMatcher.fold().
+//                           routes has a key for exactly the keys of byAuthor, and each author's Route
+//                           is STALE or was built from byAuthor.get(author) as it is now.
+//                           userID is a subscriber of author in byAuthor if and only if
+//                           author is in bySubscriber.get(userID).
+//                           No Subscription in byAuthor is empty, that is, neither all nor with patterns.
+
+// Abstraction Function: AF(s) = the set of (author, user id, filter) triples such that
+//                               s.byAuthor.get(author).get(user id) = filter
+
+// Thread safety: byAuthor and bySubscriber are only used while holding the index's monitor, so
+//                changes to subscriptions are made one at a time. Each change replaces the author's
+//                Route, which is immutable, with STALE in the concurrent map routes, so route() reads
+//                it without locking. Only a route() that finds STALE takes the monitor, to rebuild it.
+//                A tweet sees an author's subscriptions either before or after a change.
+
+class SubscriptionIndex {
+
+    private final Map<String, Map<UUID, Subscription>> byAuthor = new HashMap<>();
+    private final Map<UUID, Set<String>> bySubscriber = new HashMap<>();
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+
+    // the Route of an author whose subscriptions changed after it was last built
+    private static final Route STALE = new Route(Collections.emptyMap());
+
+    // the tweets of one author that one user subscribes to
+    private static final class Subscription {
+        static final Subscription ALL = new Subscription(true, Collections.emptyList());
+
+        final boolean all;
+        final List<String> patterns;
+
+        Subscription(boolean all, List<String> patterns) {
+            this.all = all;
+            this.patterns = patterns;
+        }
+
+        boolean isEmpty() {
+            return !all && patterns.isEmpty();
+        }
+    }
+
+    // how the tweets of one author are routed to their subscribers
+    private static final class Route {
+        // the subscribers to every tweet
+        final List<UUID> all;
+        // the subscribers to patterns only, who are not in all
+        final UUID[] filtered;
+        // the distinct patterns of the filtered subscribers, or null if there are none
+        final PatternMatcher matcher;
+        // for each pattern of matcher, the indices in filtered of the subscribers to it
+        final int[][] subscribersOf;
+
+        Route(Map<UUID, Subscription> subscribers) {
+            List<UUID> all = new ArrayList<>();
+            List<UUID> filtered = new ArrayList<>();
+            Map<String, List<Integer>> byPattern = new LinkedHashMap<>();
+            for (Map.Entry<UUID, Subscription> entry : subscribers.entrySet()) {
+                if (entry.getValue().all) {
+                    all.add(entry.getKey());
+                    continue;
+                }
+                int index = filtered.size();
+                filtered.add(entry.getKey());
+                for (String pattern : entry.getValue().patterns) {
+                    byPattern.computeIfAbsent(pattern, p -> new ArrayList<>()).add(index);
+                }
+            }
+
+            this.all = all;
+            this.filtered = filtered.toArray(new UUID[0]);
+            this.matcher = byPattern.isEmpty() ? null : new PatternMatcher(new ArrayList<>(byPattern.keySet()));
+            this.subscribersOf = new int[byPattern.size()][];
+            int p = 0;
+            for (List<Integer> indices : byPattern.values()) {
+                subscribersOf[p++] = indices.stream().mapToInt(Integer::intValue).toArray();
+            }
+        }
+
+        // the subscribers to every tweet, then those with a pattern that text contains
+        List<UUID> route(String text) {
+            List<UUID> receivers = new ArrayList<>(all);
+            if (matcher == null) {
+                return receivers;
+            }
+            BitSet matched = matcher.matching(text);
+            if (matched.isEmpty()) {
+                return receivers;
+            }
+
+            // a subscriber with several matching patterns is only added once
+            BitSet wanted = new BitSet(filtered.length);
+            for (int p = matched.nextSetBit(0); p >= 0; p = matched.nextSetBit(p + 1)) {
+                for (int index : subscribersOf[p]) {
+                    wanted.set(index);
+                }
+            }
+            for (int index = wanted.nextSetBit(0); index >= 0; index = wanted.nextSetBit(index + 1)) {
+                receivers.add(filtered[index]);
+            }
+            return receivers;
+        }
+    }
+
+    /**
+     * Subscribe a user to every tweet by a Twitter user
+     * @param userID the id of the subscriber
+     * @param twitterUserName the name of the Twitter user
+     * @return false if the user already subscribes to every tweet by the Twitter user
+     */
+    synchronized boolean subscribe(UUID userID, String twitterUserName) {
+        String author = normalize(twitterUserName);
+        Subscription current = subscription(author, userID);
+        if (current != null && current.all) {
+            return false;
+        }
+        put(author, userID, Subscription.ALL);
+        return true;
+    }
+
+    /**
+     * Subscribe a user to the tweets by a Twitter user that contain a pattern, ignoring case
+     * @param userID the id of the subscriber
+     * @param twitterUserName the name of the Twitter user
+     * @param pattern the text a tweet must contain
+     * @return false if the user already subscribes to the pattern from the Twitter user
+     */
+    synchronized boolean subscribe(UUID userID, String twitterUserName, String pattern) {
+        String author = normalize(twitterUserName);
+        String addPattern = PatternMatcher.fold(pattern);
+        Subscription current = subscription(author, userID);
+        if (current != null && current.patterns.contains(addPattern)) {
+            return false;
+        }
+
+        List<String> patterns = new ArrayList<>();
+        if (current != null) {
+            patterns.addAll(current.patterns);
+        }
+        patterns.add(addPattern);
+        put(author, userID, new Subscription(current != null && current.all, Collections.unmodifiableList(patterns)));
+        return true;
+    }
+
+    /**
+     * Cancel every subscription of a user to a Twitter user, including those to patterns
+     * @param userID the id of the subscriber
+     * @param twitterUserName the name of the Twitter user
+     * @return false if the user does not subscribe to the Twitter user
+     */
+    synchronized boolean cancel(UUID userID, String twitterUserName) {
+        String author = normalize(twitterUserName);
+        if (subscription(author, userID) == null) {
+            return false;
+        }
+        remove(author, userID);
+        return true;
+    }
+
+    /**
+     * Cancel a user's subscription to a pattern from a Twitter user;
+     * a subscription to every tweet by the Twitter user is kept
+     * @param userID the id of the subscriber
+     * @param twitterUserName the name of the Twitter user
+     * @param pattern the pattern subscribed to
+     * @return false if the user does not subscribe to the pattern from the Twitter user
+     */
+    synchronized boolean cancel(UUID userID, String twitterUserName, String pattern) {
+        String author = normalize(twitterUserName);
+        String deletePattern = PatternMatcher.fold(pattern);
+        Subscription current = subscription(author, userID);
+        if (current == null || !current.patterns.contains(deletePattern)) {
+            return false;
+        }
+
+        List<String> patterns = new ArrayList<>(current.patterns);
+        patterns.remove(deletePattern);
+        Subscription updated = new Subscription(current.all, Collections.unmodifiableList(patterns));
+        if (updated.isEmpty()) {
+            remove(author, userID);
+        } else {
+            put(author, userID, updated);
+        }
+        return true;
+    }
+
+    /**
+     * Cancel every subscription of a user
+     * @param userID the id of the subscriber
+     */
+    synchronized void cancelAll(UUID userID) {
+        Set<String> authors = bySubscriber.remove(userID);
+        if (authors == null) {
+            return;
+        }
+        for (String author : authors) {
+            Map<UUID, Subscription> subscribers = byAuthor.get(author);
+            subscribers.remove(userID);
+            if (subscribers.isEmpty()) {
+                byAuthor.remove(author);
+            }
+            invalidate(author);
+        }
+    }
+
+    /**
+     * Find the users that a tweet should be delivered to
+     * @param twitterUserName the name of the Twitter user who made the tweet
+     * @param text the text of the tweet
+     * @return the ids of the users that subscribe to every tweet by the Twitter user or
+     *         to a pattern that the text contains, ignoring case; each id appears once
+     */
+    List<UUID> route(String twitterUserName, String text) {
+        String author = normalize(twitterUserName);
+        Route route = routes.get(author);
+        if (route == STALE) {
+            route = build(author);
+        }
+        return route == null ? Collections.emptyList() : route.route(text);
+    }
+
+    // the Route of an author, built from their subscriptions if it is stale
+    private synchronized Route build(String author) {
+        Route route = routes.get(author);
+        if (route == STALE) {
+            route = new Route(byAuthor.get(author));
+            routes.put(author, route);
+        }
+        return route;
+    }
+
+    private Subscription subscription(String author, UUID userID) {
+        Map<UUID, Subscription> subscribers = byAuthor.get(author);
+        return subscribers == null ? null : subscribers.get(userID);
+    }
+
+    private void put(String author, UUID userID, Subscription subscription) {
+        byAuthor.computeIfAbsent(author, a -> new LinkedHashMap<>()).put(userID, subscription);
+        bySubscriber.computeIfAbsent(userID, id -> new HashSet<>()).add(author);
+        invalidate(author);
+    }
+
+    private void remove(String author, UUID userID) {
+        Map<UUID, Subscription> subscribers = byAuthor.get(author);
+        subscribers.remove(userID);
+        if (subscribers.isEmpty()) {
+            byAuthor.remove(author);
+        }
+        Set<String> authors = bySubscriber.get(userID);
+        authors.remove(author);
+        if (authors.isEmpty()) {
+            bySubscriber.remove(userID);
+        }
+        invalidate(author);
+    }
+
+    // mark the Route of an author stale after their subscribers have changed
+    private void invalidate(String author) {
+        if (byAuthor.containsKey(author)) {
+            routes.put(author, STALE);
+        } else {
+            routes.remove(author);
+        }
+    }
+
+    private static String normalize(String s) {
+        return s.toLowerCase(Locale.ROOT);
+    }
+}
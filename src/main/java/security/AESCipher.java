@@ -1,8 +1,17 @@
 package main.java.security;
 
+import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -34,6 +43,22 @@ import java.util.Base64;
  * <code>aes.decrypt(cipherText)</code>.
  * </p>
  *
+ * <p>
+ * Binary data can be encrypted without going through strings and Base64:
+ * <code>aes.encrypt(src, dst)</code> and <code>aes.decrypt(src, dst)</code>
+ * work between <code>ByteBuffer</code>s, and
+ * <code>aes.encryptingStream(out)</code> and
+ * <code>aes.decryptingStream(in)</code> wrap streams, so large data
+ * never has to be held in memory at once.
+ * </p>
+ *
+ * <p>
+ * An <code>AESCipher</code> may be shared between threads. Each thread
+ * keeps its own initialised <code>Cipher</code> objects for the instance,
+ * so the provider lookup and key expansion happen once per thread rather
+ * than once per call.
+ * </p>
+ *
  * @author Sathish Gopalakrishnan
  * @version 1.1
  */
@@ -41,10 +66,15 @@ public class AESCipher {
 
     private static final String AES_ALGORITHM = "AES/ECB/PKCS5Padding";
     private static final String CHARSET_NAME = "UTF-8";
+    private static final int BLOCK_SIZE = 16;
 
     private SecretKeySpec secretKey;
     private byte[] key;
 
+    // initialised ciphers for this key, created on first use by each thread
+    private final ThreadLocal<Cipher> encryptors = new ThreadLocal<>();
+    private final ThreadLocal<Cipher> decryptors = new ThreadLocal<>();
+
     /**
      * Create an instance of AESCipher
      *
@@ -69,6 +99,16 @@ public class AESCipher {
         }
     }
 
+    // this thread's cipher for the given mode, initialised with secretKey
+    private Cipher cipher(ThreadLocal<Cipher> ciphers, int mode) {
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = newCipher(mode);
+            ciphers.set(cipher);
+        }
+        return cipher;
+    }
+
     /**
      * Encrypt a string using this AESCipher instance
      *
@@ -77,12 +117,13 @@ public class AESCipher {
      */
     public String encrypt(final String strToEncrypt) {
         try {
-            Cipher cipher = Cipher.getInstance(AES_ALGORITHM);
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+            Cipher cipher = cipher(encryptors, Cipher.ENCRYPT_MODE);
             return Base64.getEncoder()
                 .encodeToString(cipher.doFinal(strToEncrypt.getBytes(CHARSET_NAME)));
         }
         catch (Exception e) {
+            // a failed operation may leave the cipher mid-message, so start afresh next time
+            encryptors.remove();
             System.out.println("Error while encrypting: " + e.toString());
         }
         return null;
@@ -96,15 +137,113 @@ public class AESCipher {
      */
     public String decrypt(final String strToDecrypt) {
         try {
-            Cipher cipher = Cipher.getInstance(AES_ALGORITHM);
-            cipher.init(Cipher.DECRYPT_MODE, secretKey);
+            Cipher cipher = cipher(decryptors, Cipher.DECRYPT_MODE);
             return new String(cipher.doFinal(Base64.getDecoder()
                 .decode(strToDecrypt)));
         }
         catch (Exception e) {
+            decryptors.remove();
             System.out.println("Error while decrypting: " + e.toString());
         }
         return null;
     }
 
-}
\ No newline at end of file
+    /**
+     * The number of bytes produced by encrypting some input
+     *
+     * @param inputLength the number of bytes to encrypt, >= 0
+     * @return the length of the ciphertext, which the destination
+     *         buffer of <code>encrypt(src, dst)</code> must have room for
+     */
+    public static int encryptedSize(int inputLength) {
+        // PKCS5 always pads, adding a whole block when the input is block aligned
+        return (inputLength / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    /**
+     * Encrypt the remaining bytes of a buffer using this AESCipher instance
+     *
+     * @param src the bytes to encrypt, from its position to its limit;
+     *            its position is advanced to its limit
+     * @param dst the buffer the ciphertext is written to, from its position,
+     *            with at least <code>encryptedSize(src.remaining())</code> bytes
+     *            remaining; its position is advanced past the ciphertext
+     * @return the number of bytes written to <code>dst</code>
+     * @throws ShortBufferException if <code>dst</code> does not have room for the
+     *                              ciphertext, in which case neither buffer is changed
+     */
+    public int encrypt(ByteBuffer src, ByteBuffer dst) throws ShortBufferException {
+        try {
+            return cipher(encryptors, Cipher.ENCRYPT_MODE).doFinal(src, dst);
+        }
+        catch (ShortBufferException e) {
+            throw e;
+        }
+        catch (GeneralSecurityException e) {
+            encryptors.remove();
+            throw new IllegalStateException("Error while encrypting", e);
+        }
+    }
+
+    /**
+     * Decrypt the remaining bytes of a buffer using this AESCipher instance
+     *
+     * @param src the ciphertext, from its position to its limit;
+     *            its position is advanced to its limit
+     * @param dst the buffer the plaintext is written to, from its position,
+     *            with at least <code>src.remaining()</code> bytes remaining;
+     *            its position is advanced past the plaintext
+     * @return the number of bytes written to <code>dst</code>
+     * @throws ShortBufferException if <code>dst</code> does not have room for the
+     *                              plaintext, in which case neither buffer is changed
+     * @throws IllegalArgumentException if <code>src</code> is not ciphertext
+     *                                  produced with this key
+     */
+    public int decrypt(ByteBuffer src, ByteBuffer dst) throws ShortBufferException {
+        try {
+            return cipher(decryptors, Cipher.DECRYPT_MODE).doFinal(src, dst);
+        }
+        catch (ShortBufferException e) {
+            throw e;
+        }
+        catch (IllegalBlockSizeException | BadPaddingException e) {
+            decryptors.remove();
+            throw new IllegalArgumentException("Malformed ciphertext", e);
+        }
+    }
+
+    /**
+     * Wrap a stream so that bytes written to it are encrypted
+     * using this AESCipher instance
+     *
+     * @param out the stream the ciphertext is written to, is not null
+     * @return a stream that encrypts what is written to it; it must be
+     *         closed to write the final padded block and close <code>out</code>
+     */
+    public OutputStream encryptingStream(OutputStream out) {
+        return new CipherOutputStream(out, newCipher(Cipher.ENCRYPT_MODE));
+    }
+
+    /**
+     * Wrap a stream so that bytes read from it are decrypted
+     * using this AESCipher instance
+     *
+     * @param in the stream the ciphertext is read from, is not null
+     * @return a stream of the decrypted bytes of <code>in</code>
+     */
+    public InputStream decryptingStream(InputStream in) {
+        return new CipherInputStream(in, newCipher(Cipher.DECRYPT_MODE));
+    }
+
+    // a cipher of its own for a stream, which may be used from any thread
+    private Cipher newCipher(int mode) {
+        try {
+            Cipher cipher = Cipher.getInstance(AES_ALGORITHM);
+            cipher.init(mode, secretKey);
+            return cipher;
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Error while creating cipher", e);
+        }
+    }
+}
@@ -10,6 +10,15 @@ package main.java.security;
 
 import java.io.UnsupportedEncodingException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * BlowfishCipher implements OpenBSD-style Blowfish password hashing using
@@ -50,6 +59,14 @@ import java.security.SecureRandom;
  * The amount of work increases exponentially (2**log_rounds), so
  * each increment is twice as much work. The default log_rounds is
  * 10, and the valid range is 4 to 31.
+ * <p>
+ * Hashing is deliberately slow, so callers that must not block (for
+ * example threads that deliver messages) can use hashPasswordAsync and
+ * verifyPasswordAsync instead. These run on a small pool with one thread
+ * per processor and a bounded queue; when the queue is full the returned
+ * future fails with a RejectedExecutionException rather than letting work
+ * pile up. getHashQueueDepth, getActiveHashCount and getRejectedHashCount
+ * report how loaded the pool is.
  *
  * @author Sathish Gopalakrishnan
  * @version 1.1
@@ -362,9 +379,23 @@ public class BlowfishCipher {
         51, 52, 53, -1, -1, -1, -1, -1
     };
 
+    // Capacity of the queue of hashing requests waiting for a thread
+    private static final int HASH_QUEUE_CAPACITY = 1024;
+
+    // Each thread hashes with its own engine, so the key schedule and
+    // working buffers are allocated once per thread rather than per hash;
+    // crypt_raw() zeroes them before returning, so an idle engine holds
+    // nothing derived from the last password
+    private static final ThreadLocal<BlowfishCipher> ENGINE =
+        ThreadLocal.withInitial(BlowfishCipher::new);
+
     // Expanded Blowfish key
-    private int P[];
-    private int S[];
+    private final int P[] = new int[P_orig.length];
+    private final int S[] = new int[S_orig.length];
+
+    // Working buffers: the block being enciphered and the ciphertext
+    private final int lr[] = new int[2];
+    private final int cdata[] = new int[bf_crypt_ciphertext.length];
 
     /**
      * Encode a byte array using bcrypt's slightly-modified base64
@@ -485,24 +516,34 @@ public class BlowfishCipher {
      * Cyclically extract a word of key material
      *
      * @param data the string to extract the data from
-     * @param offp a "pointer" (as a one-entry array) to the
-     *             current offset into data
+     * @param off  the current offset into data; the caller
+     *             advances it with nextword
      * @return the next word of material from data
      */
-    private static int streamtoword(byte data[], int offp[]) {
+    private static int streamtoword(byte data[], int off) {
         int i;
         int word = 0;
-        int off = offp[0];
 
         for (i = 0; i < 4; i++) {
             word = (word << 8) | (data[off] & 0xff);
             off = (off + 1) % data.length;
         }
 
-        offp[0] = off;
         return word;
     }
 
+    /**
+     * Advance an offset into key material past the word
+     * read by streamtoword
+     *
+     * @param data the string the data is extracted from
+     * @param off  the current offset into data
+     * @return the offset of the following word
+     */
+    private static int nextword(byte data[], int off) {
+        return (off + 4) % data.length;
+    }
+
     /**
      * Hash a password using the OpenBSD bcrypt scheme
      *
@@ -517,7 +558,7 @@ public class BlowfishCipher {
         byte passwordb[], saltb[], hashed[];
         char minor = (char) 0;
         int rounds, off = 0;
-        StringBuffer rs = new StringBuffer();
+        StringBuilder rs = new StringBuilder(60);
 
         if (salt.charAt(0) != '$' || salt.charAt(1) != '2') {
             throw new IllegalArgumentException("Invalid salt version");
@@ -548,7 +589,7 @@ public class BlowfishCipher {
 
         saltb = decode_base64(real_salt, BLOWFISHCRYPT_SALT_LEN);
 
-        B = new BlowfishCipher();
+        B = ENGINE.get();
         hashed = B.crypt_raw(passwordb, saltb, rounds);
 
         rs.append("$2");
@@ -627,6 +668,87 @@ public class BlowfishCipher {
         return (hashed.compareTo(hashPassword(plaintext, hashed)) == 0);
     }
 
+    /**
+     * Hash a password using the OpenBSD bcrypt scheme, on the hashing pool
+     * rather than the caller's thread
+     *
+     * @param password the password to hash
+     * @param salt     the salt to hash with (perhaps generated
+     *                 using BlowfishCipher.gensalt)
+     * @return a future holding the hashed password; it fails with a
+     *         RejectedExecutionException if the hashing queue is full
+     */
+    public static CompletableFuture<String> hashPasswordAsync(String password, String salt) {
+        return HashingPool.submit(() -> hashPassword(password, salt));
+    }
+
+    /**
+     * Check that a plaintext password matches a previously hashed
+     * one, on the hashing pool rather than the caller's thread
+     *
+     * @param plaintext the plaintext password to verify
+     * @param hashed    the previously-hashed password
+     * @return a future holding true if the passwords match, false otherwise;
+     *         it fails with a RejectedExecutionException if the hashing queue is full
+     */
+    public static CompletableFuture<Boolean> verifyPasswordAsync(String plaintext, String hashed) {
+        return HashingPool.submit(() -> verifyPassword(plaintext, hashed));
+    }
+
+    /**
+     * @return the number of hashing requests waiting for a thread
+     */
+    public static int getHashQueueDepth() {
+        return HashingPool.EXECUTOR.getQueue().size();
+    }
+
+    /**
+     * @return the number of hashing requests currently running
+     */
+    public static int getActiveHashCount() {
+        return HashingPool.EXECUTOR.getActiveCount();
+    }
+
+    /**
+     * @return the number of hashing requests rejected because the queue was full
+     */
+    public static long getRejectedHashCount() {
+        return HashingPool.REJECTED.get();
+    }
+
+    /**
+     * The pool that runs asynchronous hashing requests. It is created the
+     * first time an asynchronous method or metric is used, and its threads
+     * are daemons so it never keeps the JVM alive.
+     */
+    private static final class HashingPool {
+        private static final AtomicLong REJECTED = new AtomicLong();
+        private static final ThreadPoolExecutor EXECUTOR = newExecutor();
+
+        private static ThreadPoolExecutor newExecutor() {
+            int threads = Runtime.getRuntime().availableProcessors();
+            AtomicInteger count = new AtomicInteger();
+            return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(HASH_QUEUE_CAPACITY),
+                r -> {
+                    Thread t = new Thread(r, "blowfish-hash-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        }
+
+        private static <T> CompletableFuture<T> submit(Supplier<T> task) {
+            try {
+                return CompletableFuture.supplyAsync(task, EXECUTOR);
+            }
+            catch (RejectedExecutionException ree) {
+                REJECTED.incrementAndGet();
+                return CompletableFuture.failedFuture(ree);
+            }
+        }
+    }
+
     /**
      * Blowfish encipher a single 64-bit block encoded as
      * two 32-bit halves
@@ -661,8 +783,8 @@ public class BlowfishCipher {
      * Initialise the Blowfish key schedule
      */
     private void init_key() {
-        P = (int[]) P_orig.clone();
-        S = (int[]) S_orig.clone();
+        System.arraycopy(P_orig, 0, P, 0, P_orig.length);
+        System.arraycopy(S_orig, 0, S, 0, S_orig.length);
     }
 
     /**
@@ -672,12 +794,15 @@ public class BlowfishCipher {
      */
     private void key(byte key[]) {
         int i;
-        int koffp[] = {0};
-        int lr[] = {0, 0};
+        int koff = 0;
         int plen = P.length, slen = S.length;
 
+        lr[0] = 0;
+        lr[1] = 0;
+
         for (i = 0; i < plen; i++) {
-            P[i] = P[i] ^ streamtoword(key, koffp);
+            P[i] = P[i] ^ streamtoword(key, koff);
+            koff = nextword(key, koff);
         }
 
         for (i = 0; i < plen; i += 2) {
@@ -703,25 +828,32 @@ public class BlowfishCipher {
      */
     private void ekskey(byte data[], byte key[]) {
         int i;
-        int koffp[] = {0}, doffp[] = {0};
-        int lr[] = {0, 0};
+        int koff = 0, doff = 0;
         int plen = P.length, slen = S.length;
 
+        lr[0] = 0;
+        lr[1] = 0;
+
         for (i = 0; i < plen; i++) {
-            P[i] = P[i] ^ streamtoword(key, koffp);
+            P[i] = P[i] ^ streamtoword(key, koff);
+            koff = nextword(key, koff);
         }
 
         for (i = 0; i < plen; i += 2) {
-            lr[0] ^= streamtoword(data, doffp);
-            lr[1] ^= streamtoword(data, doffp);
+            lr[0] ^= streamtoword(data, doff);
+            doff = nextword(data, doff);
+            lr[1] ^= streamtoword(data, doff);
+            doff = nextword(data, doff);
             encipher(lr, 0);
             P[i] = lr[0];
             P[i + 1] = lr[1];
         }
 
         for (i = 0; i < slen; i += 2) {
-            lr[0] ^= streamtoword(data, doffp);
-            lr[1] ^= streamtoword(data, doffp);
+            lr[0] ^= streamtoword(data, doff);
+            doff = nextword(data, doff);
+            lr[1] ^= streamtoword(data, doff);
+            doff = nextword(data, doff);
             encipher(lr, 0);
             S[i] = lr[0];
             S[i + 1] = lr[1];
@@ -740,7 +872,6 @@ public class BlowfishCipher {
      */
     private byte[] crypt_raw(byte password[], byte salt[], int log_rounds) {
         int rounds, i, j;
-        int cdata[] = (int[]) bf_crypt_ciphertext.clone();
         int clen = cdata.length;
         byte ret[];
 
@@ -752,26 +883,43 @@ public class BlowfishCipher {
             throw new IllegalArgumentException("Bad salt length");
         }
 
-        init_key();
-        ekskey(salt, password);
-        for (i = 0; i < rounds; i++) {
-            key(password);
-            key(salt);
-        }
+        try {
+            System.arraycopy(bf_crypt_ciphertext, 0, cdata, 0, clen);
+            init_key();
+            ekskey(salt, password);
+            for (i = 0; i < rounds; i++) {
+                key(password);
+                key(salt);
+            }
 
-        for (i = 0; i < 64; i++) {
-            for (j = 0; j < (clen >> 1); j++) {
-                encipher(cdata, j << 1);
+            for (i = 0; i < 64; i++) {
+                for (j = 0; j < (clen >> 1); j++) {
+                    encipher(cdata, j << 1);
+                }
             }
-        }
 
-        ret = new byte[clen * 4];
-        for (i = 0, j = 0; i < clen; i++) {
-            ret[j++] = (byte) ((cdata[i] >> 24) & 0xff);
-            ret[j++] = (byte) ((cdata[i] >> 16) & 0xff);
-            ret[j++] = (byte) ((cdata[i] >> 8) & 0xff);
-            ret[j++] = (byte) (cdata[i] & 0xff);
+            ret = new byte[clen * 4];
+            for (i = 0, j = 0; i < clen; i++) {
+                ret[j++] = (byte) ((cdata[i] >> 24) & 0xff);
+                ret[j++] = (byte) ((cdata[i] >> 16) & 0xff);
+                ret[j++] = (byte) ((cdata[i] >> 8) & 0xff);
+                ret[j++] = (byte) (cdata[i] & 0xff);
+            }
+            return ret;
         }
-        return ret;
+        finally {
+            wipe();
+        }
+    }
+
+    /**
+     * Zero the expanded key and working buffers, so that nothing
+     * derived from the password is left in this engine
+     */
+    private void wipe() {
+        Arrays.fill(P, 0);
+        Arrays.fill(S, 0);
+        Arrays.fill(lr, 0);
+        Arrays.fill(cdata, 0);
     }
 }
\ No newline at end of file
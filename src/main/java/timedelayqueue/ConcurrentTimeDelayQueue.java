@@ -0,0 +1,473 @@
+package main.java.timedelayqueue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Description: A ConcurrentTimeDelayQueue is a MessageQueue with the behavior of a TimeDelayQueue
+//              that does not serialize its callers on a single monitor. Messages are kept in a concurrent skip list ordered by timestamp
+//              (ties broken by insertion order), the message count is an atomic counter and the
+//              operation history is a lock-free ring buffer, so producers and consumers on many
+//              cores can use the queue at the same time.
+
+// Representation Invariant: Every value in index is the key of a message in messages with that id,
+//                           except transiently while add() or a removal is in progress.
+//                           Every transient message in messages has an entry in expiries whose value
+//                           is the message's key in messages.
+//                           historyCursor counts the operations ever recorded; the slot
+//                           historyCursor % history.length() holds the next operation's timestamp.
+//                           Otherwise as for TimeDelayQueue.
+
+// Abstraction Function: AF(q) = TimeDelayQueue such that
+//                          q.messages = Objects in TimeDelayQueue, keyed by (timestamp, insertion order)
+//                          q.index = message ids of the objects in TimeDelayQueue
+//                          q.expiries = transient objects in TimeDelayQueue, keyed by (timestamp + lifetime, insertion order)
+//                          q.messageCount = counter of all objects that have been added
+//                          q.delay = delay for getNext() behavior
+//                          q.history = timestamps of the most recent history.length() operations
+//                          q.peakLoadTrackers = running peak loads for the windows registered up front
+
+// Thread safety: No method holds a lock across the whole queue. Duplicate detection relies on
+//                index.putIfAbsent(), so exactly one of two concurrent adds of the same id succeeds.
+//                A message is handed out or expired by whichever thread wins messages.remove(key),
+//                so each message is returned at most once and an expired transient message is never
+//                returned. The history slot for an operation is claimed with an atomic increment,
+//                so concurrent operations never overwrite each other's timestamps.
+//
+//                Each PeakLoadTracker is updated while holding that tracker's own lock, and only
+//                blocking consumers (take()/poll()) and the add() that brings in a new head ever
+//                synchronize on the available monitor. The head is re-read while holding that
+//                monitor before waiting, so a consumer cannot miss the wake-up from such an add().
+//
+//                Because operations interleave freely, getPeakLoad() computes over a snapshot
+//                of the history and getNext() is ordered with respect to the adds that completed
+//                before it started; an add() that overlaps a getNext() may or may not be seen.
+
+public class ConcurrentTimeDelayQueue implements MessageQueue {
+
+    // Store the delay of the ConcurrentTimeDelayQueue (initialized in constructor)
+    private final int delay;
+
+    // Store all current messages in a skip list ordered by timestamp, then by insertion order
+    private final ConcurrentSkipListMap<Key, PubSubMessage> messages = new ConcurrentSkipListMap<>();
+
+    // Index the current messages by id so that duplicates are detected in O(1)
+    private final Map<UUID, Key> index = new ConcurrentHashMap<>();
+
+    // Store the keys of transient messages ordered by the time they expire
+    private final ConcurrentSkipListMap<Key, Key> expiries = new ConcurrentSkipListMap<>();
+
+    // Sequence number handed to the next message added, used to break ties
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    // Store the total number of messages added (irrespective of those that have been removed)
+    private final AtomicLong messageCount = new AtomicLong();
+
+    // Store the timestamps of the most recent operations in a lock-free ring buffer;
+    // a slot holding 0 has not been written yet
+    private final AtomicLongArray history;
+    private final AtomicLong historyCursor = new AtomicLong();
+
+    // Running peak loads, keyed by time window, for windows registered with registerPeakLoadWindow()
+    private final Map<Integer, PeakLoadTracker> peakLoadTrackers = new ConcurrentHashMap<>();
+
+    // Monitor that blocked consumers wait on for a new head to arrive
+    private final Object available = new Object();
+
+    // a skip list key: a time (timestamp or expiry) and an insertion sequence number to break ties
+    private static final class Key implements Comparable<Key> {
+        final long time;
+        final long sequence;
+
+        Key(long time, long sequence) {
+            this.time = time;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Key other) {
+            int byTime = Long.compare(time, other.time);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Create a new ConcurrentTimeDelayQueue
+     * @param delay the delay, in milliseconds, that the queue can tolerate, >= 0
+     */
+    public ConcurrentTimeDelayQueue(int delay) {
+        this(delay, TimeDelayQueue.DEFAULT_HISTORY_CAPACITY);
+    }
+
+    /**
+     * Create a new ConcurrentTimeDelayQueue that retains a bounded operation history
+     * @param delay the delay, in milliseconds, that the queue can tolerate, >= 0
+     * @param historyCapacity the number of most recent operations retained
+     *                        for getPeakLoad(), > 0
+     */
+    public ConcurrentTimeDelayQueue(int delay, int historyCapacity) {
+        if (historyCapacity <= 0) {
+            throw new IllegalArgumentException("historyCapacity must be positive");
+        }
+        this.delay = delay;
+        this.history = new AtomicLongArray(historyCapacity);
+    }
+
+    private void addToHistory() {
+        long slot = historyCursor.getAndIncrement();
+        history.set((int) (slot % history.length()), System.currentTimeMillis());
+
+        // read the clock under the tracker's lock, so it records its timestamps in order
+        for (PeakLoadTracker tracker : peakLoadTrackers.values()) {
+            synchronized (tracker) {
+                tracker.record(System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * Add a message to the ConcurrentTimeDelayQueue
+     * @param msg the message to add
+     * @return false is a message with the same id exists
+     */
+    @Override
+    public boolean add(PubSubMessage msg) {
+        addToHistory();
+        removeTransientMsg();
+
+        Key key = insert(msg);
+        if (key == null) {
+            return false;
+        }
+        signalIfHead(key);
+        return true;
+    }
+
+    /**
+     * Add a batch of messages to the ConcurrentTimeDelayQueue, removing expired
+     * transient messages only once for the whole batch.
+     * Each message added counts as one operation in the history.
+     * @param msgs the messages to add, is not null
+     * @return for each message, in the order given, false if a message with the same id
+     *         already existed (including earlier in the batch), true otherwise
+     */
+    @Override
+    public List<Boolean> addAll(Collection<? extends PubSubMessage> msgs) {
+        List<PubSubMessage> batch = new ArrayList<>(msgs);
+        for (int i = 0; i < batch.size(); i++) {
+            addToHistory();
+        }
+
+        removeTransientMsg();
+
+        // Insert the batch in timestamp order (stable, so ties keep the order given),
+        // so each insertion lands at or near the tail of the skip list
+        Integer[] order = new Integer[batch.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> batch.get(i).getTimestampMillis()));
+
+        Key earliest = null;
+        Boolean[] added = new Boolean[batch.size()];
+        for (int i : order) {
+            Key key = insert(batch.get(i));
+            added[i] = key != null;
+            if (earliest == null) {
+                earliest = key;
+            }
+        }
+
+        if (earliest != null) {
+            signalIfHead(earliest);
+        }
+        return Arrays.asList(added);
+    }
+
+    // add msg to the skip lists and the index unless a message with the same id is queued,
+    // without recording history or removing expired messages
+    // returns the key msg was added under, or null if it was a duplicate
+    private Key insert(PubSubMessage msg) {
+        long timestamp = msg.getTimestampMillis();
+        long sequence = nextSequence.getAndIncrement();
+        Key key = new Key(timestamp, sequence);
+        if (index.putIfAbsent(msg.getId(), key) != null) {
+            return null;
+        }
+
+        messages.put(key, msg);
+        if (msg.isTransient()) {
+            long lifetime = ((TransientPubSubMessage) msg).getLifetime();
+            expiries.put(new Key(timestamp + lifetime, sequence), key);
+        }
+        messageCount.incrementAndGet();
+        return key;
+    }
+
+    // wake blocked consumers if key is the new head, which may be eligible
+    // sooner than the one they are waiting on
+    private void signalIfHead(Key key) {
+        Map.Entry<Key, PubSubMessage> head = messages.firstEntry();
+        if (head != null && head.getKey() == key) {
+            synchronized (available) {
+                available.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Get the count of the total number of messages processed
+     * by this ConcurrentTimeDelayQueue over the lifetime of the queue
+     * @return the total number of objects added to the queue
+     */
+    @Override
+    public long getTotalMsgCount() {
+        return messageCount.get();
+    }
+
+    /**
+     * Get the next PubSubMessage in the ConcurrentTimeDelayQueue with the earliest Timestamp,
+     * and whose time in the queue exceeds this.delay
+     * @return the next PubSubMessage and PubSubMessage.NO_MSG if there is no suitable message
+     */
+    @Override
+    public PubSubMessage getNext() {
+        addToHistory();
+        removeTransientMsg();
+
+        PubSubMessage next = pollEligible(System.currentTimeMillis());
+        return next == null ? PubSubMessage.NO_MSG : next;
+    }
+
+    /**
+     * Remove every PubSubMessage whose time in the ConcurrentTimeDelayQueue exceeds this.delay,
+     * up to maxElements of them, in the order getNext() would return them.
+     * Each message removed counts as one operation in the history, and
+     * the call counts as one operation if nothing is removed.
+     * @param sink the collection to add the removed messages to, is not null
+     * @param maxElements the maximum number of messages to remove, >= 0
+     * @return the number of messages removed and added to sink
+     */
+    @Override
+    public int drainTo(Collection<? super PubSubMessage> sink, int maxElements) {
+        removeTransientMsg();
+
+        long currentTime = System.currentTimeMillis();
+        int drained = 0;
+        PubSubMessage next;
+        while (drained < maxElements && (next = pollEligible(currentTime)) != null) {
+            sink.add(next);
+            addToHistory();
+            drained++;
+        }
+
+        if (drained == 0) {
+            addToHistory();
+        }
+        return drained;
+    }
+
+    /**
+     * Get every PubSubMessage in the ConcurrentTimeDelayQueue, whether or not its time in
+     * the queue exceeds this.delay, without removing any of them. Transient messages beyond
+     * their lifetime are left out. The call does not count as an operation in the history.
+     * Messages added or removed while the snapshot is taken may or may not be included.
+     * @return the messages, in the order getNext() would return them
+     */
+    @Override
+    public List<PubSubMessage> snapshot() {
+        long currentTime = System.currentTimeMillis();
+        List<PubSubMessage> msgs = new ArrayList<>();
+        for (PubSubMessage msg : messages.values()) {
+            if (!isExpired(msg, currentTime)) {
+                msgs.add(msg);
+            }
+        }
+        return msgs;
+    }
+
+    /**
+     * Get the next PubSubMessage in the ConcurrentTimeDelayQueue with the earliest Timestamp,
+     * waiting if necessary until its time in the queue exceeds this.delay
+     * @return the next PubSubMessage, never PubSubMessage.NO_MSG
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    @Override
+    public PubSubMessage take() throws InterruptedException {
+        addToHistory();
+
+        while (true) {
+            removeTransientMsg();
+
+            PubSubMessage next = pollEligible(System.currentTimeMillis());
+            if (next != null) {
+                return next;
+            }
+
+            synchronized (available) {
+                Map.Entry<Key, PubSubMessage> head = messages.firstEntry();
+                long currentTime = System.currentTimeMillis();
+                if (head == null) {
+                    available.wait();
+                } else if (head.getKey().time + delay > currentTime) {
+                    available.wait(head.getKey().time + delay - currentTime);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the next PubSubMessage in the ConcurrentTimeDelayQueue with the earliest Timestamp,
+     * waiting up to the given timeout for its time in the queue to exceed this.delay
+     * @param timeout how long to wait before giving up, in units of unit
+     * @param unit the unit of timeout, is not null
+     * @return the next PubSubMessage and PubSubMessage.NO_MSG if no suitable message
+     *         became available before the timeout elapsed
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    @Override
+    public PubSubMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        addToHistory();
+
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (true) {
+            removeTransientMsg();
+
+            PubSubMessage next = pollEligible(System.currentTimeMillis());
+            if (next != null) {
+                return next;
+            }
+
+            synchronized (available) {
+                long currentTime = System.currentTimeMillis();
+                if (currentTime >= deadline) {
+                    return PubSubMessage.NO_MSG;
+                }
+                long waitUntil = deadline;
+                Map.Entry<Key, PubSubMessage> head = messages.firstEntry();
+                if (head != null) {
+                    waitUntil = Math.min(waitUntil, head.getKey().time + delay);
+                }
+                if (waitUntil > currentTime) {
+                    available.wait(waitUntil - currentTime);
+                }
+            }
+        }
+    }
+
+    // remove and return the head of the queue if its time in the queue exceeds this.delay,
+    // otherwise return null; retries if another consumer takes the head first
+    // a transient head beyond its lifetime at currentTime is removed rather than returned,
+    // as removeTransientMsg() in another thread may not have removed it from messages yet
+    private PubSubMessage pollEligible(long currentTime) {
+        while (true) {
+            Map.Entry<Key, PubSubMessage> head = messages.firstEntry();
+            if (head == null || currentTime - head.getKey().time < delay) {
+                return null;
+            }
+            if (messages.remove(head.getKey(), head.getValue())) {
+                index.remove(head.getValue().getId(), head.getKey());
+                if (!isExpired(head.getValue(), currentTime)) {
+                    return head.getValue();
+                }
+            }
+        }
+    }
+
+    private static boolean isExpired(PubSubMessage msg, long currentTime) {
+        return msg.isTransient()
+                && currentTime >= msg.getTimestampMillis() + ((TransientPubSubMessage) msg).getLifetime();
+    }
+
+    /**
+     * Maintain the peak load for a time window incrementally, so that
+     * getPeakLoad(timeWindow) answers in O(1) without scanning the history.
+     * The running peak starts from the operations still retained in the history
+     * and, unlike a scan, keeps counting operations after they are evicted from it.
+     * @param timeWindow length of time of the window, must be >= 0
+     */
+    @Override
+    public void registerPeakLoadWindow(int timeWindow) {
+        peakLoadTrackers.computeIfAbsent(timeWindow, window -> {
+            PeakLoadTracker tracker = new PeakLoadTracker(window);
+            for (long timestamp : historySnapshot()) {
+                tracker.record(timestamp);
+            }
+            return tracker;
+        });
+    }
+
+    /**
+     * Get the maximum number of operations performed on ConcurrentTimeDelayQueue over any window
+     * of time (the operations of interest are add and getNext), considering only
+     * the operations still retained in the history unless the window was registered
+     * with registerPeakLoadWindow()
+     * @param timeWindow length of time of the window, must be >= 0
+     * @return the maximum number of operations performed in the time window
+     **/
+    @Override
+    public int getPeakLoad(int timeWindow) {
+        PeakLoadTracker tracker = peakLoadTrackers.get(timeWindow);
+        if (tracker != null) {
+            return tracker.getPeak();
+        }
+
+        long[] snapshot = historySnapshot();
+        int highest = 0;
+        int end = 0;
+        for (int start = 0; start < snapshot.length; start++) {
+            long endTimestamp = snapshot[start] + timeWindow;
+            while (end < snapshot.length && snapshot[end] <= endTimestamp) {
+                end++;
+            }
+            highest = Math.max(highest, end - start);
+        }
+        return highest;
+    }
+
+    // copy the retained history, oldest first; concurrent operations may record
+    // their timestamps out of order, so the copy is sorted before use
+    private long[] historySnapshot() {
+        int size = (int) Math.min(historyCursor.get(), history.length());
+        long[] snapshot = new long[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            long timestamp = history.get(i);
+            if (timestamp != 0) {
+                snapshot[count++] = timestamp;
+            }
+        }
+        snapshot = Arrays.copyOf(snapshot, count);
+        Arrays.sort(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Remove all TransientPubSubMessages from this.messages
+     * if its time in the ConcurrentTimeDelayQueue exceeds the TransientPubSubMessage's lifetime
+     * modifies: this.messages
+     */
+    @Override
+    public void removeTransientMsg() {
+        long currentTime = System.currentTimeMillis();
+
+        Map.Entry<Key, Key> head = expiries.firstEntry();
+        while (head != null && currentTime >= head.getKey().time) {
+            if (expiries.remove(head.getKey()) != null) {
+                PubSubMessage expired = messages.remove(head.getValue());
+                if (expired != null) {
+                    index.remove(expired.getId(), head.getValue());
+                }
+            }
+            head = expiries.firstEntry();
+        }
+    }
+}
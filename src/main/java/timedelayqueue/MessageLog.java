@@ -0,0 +1,390 @@
+package main.java.timedelayqueue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+// Description: A MessageLog is a durable, append-only record of the messages in a TimeDelayQueue.
+//              Adding a message appends an ADD record and removing one (getNext or expiry) appends
+//              a TOMBSTONE record. Records are written to memory-mapped segment files and forced
+//              to disk in groups, so a queue that is restarted can recover its pending messages by
+//              replaying the log.
+//
+//              Each record is laid out as [int length][int crc32][byte kind][payload], where length
+//              and crc32 cover the kind and payload. The payload of an ADD record is the message in
+//              PubSubMessageCodec's format, written straight into the mapped segment; the payload
+//              of a TOMBSTONE is the message id. A length of 0 marks the end of a segment,
+//              and a record whose checksum does not match (a torn write) ends replay of its segment.
+//
+//              The log keeps track of how many ADD records in each segment are still live. The oldest
+//              segment is deleted as soon as every ADD in it has been tombstoned, and when the log rolls
+//              over to a new segment, the oldest segments are compacted if their live records take up
+//              no more than half a segment: those records are copied into the new segment and the old
+//              ones deleted. Disk use and replay time therefore follow the pending messages rather
+//              than the total traffic. Segments are only ever deleted oldest first, so a TOMBSTONE
+//              never outlives the segments holding the ADD records it cancels.
+
+// Representation Invariant: segments are numbered consecutively from firstSegment to currentSegment
+//                           and only currentSegment is written to. buffer maps currentSegment and its
+//                           position is just past the last complete record in it.
+//                           usage has an entry for each segment from firstSegment to currentSegment, whose
+//                           counts are those of the locations in live that are in that segment.
+//                           0 <= unsynced < syncBatchSize.
+
+// Abstraction Function: AF(l) = MessageLog such that
+//                          l.directory = where the segment files live
+//                          l.recovered = the messages that were pending when the log was opened,
+//                                        in the order they were originally added
+//                          l.buffer = the tail of the log, where the next record is appended
+//                          l.live = for each message added and not yet removed, where its ADD record is
+//                          l.unsynced = number of records appended since the log was last forced to disk
+
+// Thread safety: All public methods are synchronized on the MessageLog, so records
+//                from concurrent callers are appended one at a time and never interleave.
+
+public class MessageLog implements AutoCloseable {
+
+    // Default size of a segment file
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    // Default number of records appended between forcing the log to disk
+    public static final int DEFAULT_SYNC_BATCH_SIZE = 256;
+
+    private static final byte ADD = 1;
+    private static final byte TOMBSTONE = 2;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;
+    private final int segmentSize;
+    private final int syncBatchSize;
+    private final List<PubSubMessage> recovered;
+    private final CRC32 crc = new CRC32();
+    private final Map<UUID, Location> live = new HashMap<>();
+    private final Map<Long, Usage> usage = new HashMap<>();
+    private long firstSegment;
+    private long currentSegment;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int unsynced = 0;
+
+    // where the ADD record of a live message is
+    private static final class Location {
+        final long segment;
+        final int size;
+
+        Location(long segment, int size) {
+            this.segment = segment;
+            this.size = size;
+        }
+    }
+
+    // the live ADD records in a segment
+    private static final class Usage {
+        int records = 0;
+        long bytes = 0;
+    }
+
+    /**
+     * Open the log in a directory, recovering the messages that were pending
+     * when it was last used; the recovered messages are rewritten into a fresh
+     * segment and the old segments are deleted
+     * @param directory the directory to keep the log in, created if it does not exist
+     * @throws UncheckedIOException if the log cannot be read or written
+     */
+    public MessageLog(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_BATCH_SIZE);
+    }
+
+    /**
+     * Open the log in a directory, recovering the messages that were pending
+     * when it was last used
+     * @param directory the directory to keep the log in, created if it does not exist
+     * @param segmentSize the size in bytes of each segment file, must be large enough
+     *                    to hold any single record
+     * @param syncBatchSize the number of records appended between forcing the log to disk, > 0
+     * @throws UncheckedIOException if the log cannot be read or written
+     */
+    public MessageLog(File directory, int segmentSize, int syncBatchSize) {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize must be more than " + HEADER_SIZE + " bytes");
+        }
+        if (syncBatchSize <= 0) {
+            throw new IllegalArgumentException("syncBatchSize must be positive");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncBatchSize = syncBatchSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new UncheckedIOException(new IOException("Cannot create " + directory));
+        }
+
+        try {
+            long[] existing = segmentNumbers();
+            this.recovered = replay(existing);
+
+            // Start a fresh segment holding only the live messages, then drop the old ones
+            this.firstSegment = existing.length == 0 ? 0 : existing[existing.length - 1] + 1;
+            this.currentSegment = firstSegment;
+            openSegment(currentSegment);
+            for (PubSubMessage msg : recovered) {
+                append(msg);
+            }
+            sync();
+            for (long segment : existing) {
+                segmentFile(segment).delete();
+            }
+        }
+        catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * Obtain the messages that were pending when this log was opened
+     * @return the recovered messages, in the order they were originally added
+     */
+    public synchronized List<PubSubMessage> getRecovered() {
+        return new ArrayList<>(recovered);
+    }
+
+    /**
+     * Record that a message was added to the queue
+     * @param msg the message added, whose type is a BasicMessageType
+     * @throws UncheckedIOException if the record cannot be written
+     */
+    public synchronized void append(PubSubMessage msg) {
+        int start = beginRecord(ADD, PubSubMessageCodec.encodedSize(msg));
+        PubSubMessageCodec.encode(msg, buffer);
+        int size = endRecord(start);
+
+        release(live.put(msg.getId(), new Location(currentSegment, size)));
+        Usage current = usage.get(currentSegment);
+        current.records++;
+        current.bytes += size;
+    }
+
+    /**
+     * Record that a message was removed from the queue
+     * @param id the id of the message removed
+     * @throws UncheckedIOException if the record cannot be written
+     */
+    public synchronized void remove(UUID id) {
+        int start = beginRecord(TOMBSTONE, 2 * Long.BYTES);
+        PubSubMessageCodec.putUUID(buffer, id);
+        endRecord(start);
+
+        release(live.remove(id));
+        retireDeadSegments();
+    }
+
+    /**
+     * Force every record appended so far to disk
+     * @throws UncheckedIOException if the records cannot be forced
+     */
+    public synchronized void sync() {
+        buffer.force();
+        unsynced = 0;
+    }
+
+    /**
+     * Force the log to disk and release its segment file
+     * @throws UncheckedIOException if the log cannot be forced or closed
+     */
+    @Override
+    public synchronized void close() {
+        sync();
+        try {
+            channel.close();
+        }
+        catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    // start a record of payloadSize bytes in the current segment, rolling over to a new segment
+    // if it does not fit, and leave the buffer positioned for the payload
+    // returns the position of the record, to be passed to endRecord() once the payload is written
+    private int beginRecord(byte kind, int payloadSize) {
+        int length = 1 + payloadSize;
+        if (HEADER_SIZE + length > segmentSize) {
+            throw new IllegalArgumentException("Record of " + length + " bytes does not fit in a segment");
+        }
+
+        if (buffer.remaining() < HEADER_SIZE + length) {
+            rollOver(HEADER_SIZE + length);
+        }
+
+        int start = buffer.position();
+        buffer.position(start + HEADER_SIZE);
+        buffer.put(kind);
+        return start;
+    }
+
+    // finish the record started at start by writing its header, and force the log
+    // to disk once syncBatchSize records have been appended
+    // returns the size of the record, header included
+    private int endRecord(int start) {
+        int end = buffer.position();
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + HEADER_SIZE).limit(end);
+        crc.reset();
+        crc.update(body);
+
+        // The body is written before the length, so a reader never sees a length for a missing body
+        buffer.putInt(start + Integer.BYTES, (int) crc.getValue());
+        buffer.putInt(start, end - start - HEADER_SIZE);
+
+        if (++unsynced >= syncBatchSize) {
+            sync();
+        }
+        return end - start;
+    }
+
+    // seal the current segment and start a new one, leaving room in it for a record of reserve bytes,
+    // then compact the oldest segments into the new one while their live records fit in its first half
+    private void rollOver(int reserve) {
+        sync();
+        try {
+            channel.close();
+            openSegment(++currentSegment);
+        }
+        catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        retireDeadSegments();
+
+        int room = segmentSize - Math.max(reserve, segmentSize / 2);
+        while (firstSegment < currentSegment && usage.get(firstSegment).bytes <= buffer.remaining() - room) {
+            long oldest = firstSegment;
+            scan(oldest, (kind, record) -> {
+                if (kind != ADD) {
+                    return;
+                }
+                PubSubMessage msg = PubSubMessageCodec.decode(record);
+                Location location = live.get(msg.getId());
+                if (location != null && location.segment == oldest) {
+                    append(msg);
+                }
+            });
+            // The copies must be on disk before the originals are deleted
+            sync();
+            retireDeadSegments();
+            if (firstSegment == oldest) {
+                break;
+            }
+        }
+    }
+
+    // forget the ADD record at a location, which is no longer live
+    private void release(Location location) {
+        if (location != null) {
+            Usage old = usage.get(location.segment);
+            old.records--;
+            old.bytes -= location.size;
+        }
+    }
+
+    // delete the oldest segments for as long as they are sealed and hold no live ADD records
+    private void retireDeadSegments() {
+        while (firstSegment < currentSegment && usage.get(firstSegment).records == 0) {
+            usage.remove(firstSegment);
+            File file = segmentFile(firstSegment++);
+            if (!file.delete() && file.exists()) {
+                throw new UncheckedIOException(new IOException("Cannot delete " + file));
+            }
+        }
+    }
+
+    // map a new, empty segment file for appending
+    private void openSegment(long segment) throws IOException {
+        channel = FileChannel.open(segmentFile(segment).toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        usage.put(segment, new Usage());
+    }
+
+    // rebuild the pending messages from the records in the given segments, in order
+    private List<PubSubMessage> replay(long[] segments) {
+        Map<UUID, PubSubMessage> pending = new LinkedHashMap<>();
+
+        for (long segment : segments) {
+            scan(segment, (kind, record) -> {
+                if (kind == ADD) {
+                    PubSubMessage msg = PubSubMessageCodec.decode(record);
+                    pending.put(msg.getId(), msg);
+                } else if (kind == TOMBSTONE) {
+                    pending.remove(PubSubMessageCodec.getUUID(record));
+                }
+            });
+        }
+
+        return new ArrayList<>(pending.values());
+    }
+
+    // pass each complete record in a segment, in order, to visitor along with the record's
+    // payload, stopping at the end of the segment or at the first torn record
+    private void scan(long segment, BiConsumer<Byte, ByteBuffer> visitor) {
+        try (FileChannel in = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.READ)) {
+            ByteBuffer records = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            while (records.remaining() >= HEADER_SIZE) {
+                int length = records.getInt();
+                int checksum = records.getInt();
+                if (length <= 0 || length > records.remaining()) {
+                    break;
+                }
+
+                ByteBuffer record = records.slice();
+                record.limit(length);
+                records.position(records.position() + length);
+
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                visitor.accept(record.get(), record);
+            }
+        }
+        catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    // the numbers of the segment files in the directory, in ascending order
+    private long[] segmentNumbers() {
+        File[] files = directory.listFiles((dir, name) ->
+            name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return new long[0];
+        }
+
+        long[] numbers = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            numbers[i] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    private File segmentFile(long segment) {
+        return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+}
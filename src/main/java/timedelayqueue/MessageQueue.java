@@ -0,0 +1,115 @@
+package main.java.timedelayqueue;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A MessageQueue holds PubSubMessages and hands each of them out
+ * once it has been in the queue for longer than the queue's delay,
+ * earliest timestamp first. Transient messages that are beyond their
+ * lifetime are never handed out.
+ *
+ * <p>
+ *     The queue also counts every message ever added and keeps a history
+ *     of the add and getNext operations performed on it, from which
+ *     the peak load over a window of time is computed.
+ * </p>
+ *
+ * <p>
+ *     TimeDelayQueue serializes its callers on a single monitor, and
+ *     ConcurrentTimeDelayQueue lets them proceed without a queue-wide lock.
+ * </p>
+ */
+
+public interface MessageQueue {
+
+    /**
+     * Add a message to the queue
+     * @param msg the message to add
+     * @return false is a message with the same id exists
+     */
+    boolean add(PubSubMessage msg);
+
+    /**
+     * Add a batch of messages to the queue.
+     * Each message added counts as one operation in the history.
+     * @param msgs the messages to add, is not null
+     * @return for each message, in the order given, false if a message with the same id
+     *         already existed (including earlier in the batch), true otherwise
+     */
+    List<Boolean> addAll(Collection<? extends PubSubMessage> msgs);
+
+    /**
+     * Get the count of the total number of messages processed
+     * by the queue over its lifetime
+     * @return the total number of objects added to the queue
+     */
+    long getTotalMsgCount();
+
+    /**
+     * Get the next PubSubMessage in the queue with the earliest Timestamp,
+     * and whose time in the queue exceeds the delay
+     * @return the next PubSubMessage and PubSubMessage.NO_MSG if there is no suitable message
+     */
+    PubSubMessage getNext();
+
+    /**
+     * Remove every PubSubMessage whose time in the queue exceeds the delay,
+     * up to maxElements of them, in the order getNext() would return them.
+     * Each message removed counts as one operation in the history, and
+     * the call counts as one operation if nothing is removed.
+     * @param sink the collection to add the removed messages to, is not null
+     * @param maxElements the maximum number of messages to remove, >= 0
+     * @return the number of messages removed and added to sink
+     */
+    int drainTo(Collection<? super PubSubMessage> sink, int maxElements);
+
+    /**
+     * Get every PubSubMessage in the queue, whether or not its time in the queue
+     * exceeds the delay, without removing any of them. Transient messages beyond their
+     * lifetime are left out. The call does not count as an operation in the history.
+     * @return the messages, in the order getNext() would return them
+     */
+    List<PubSubMessage> snapshot();
+
+    /**
+     * Get the next PubSubMessage in the queue with the earliest Timestamp,
+     * waiting if necessary until its time in the queue exceeds the delay
+     * @return the next PubSubMessage, never PubSubMessage.NO_MSG
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    PubSubMessage take() throws InterruptedException;
+
+    /**
+     * Get the next PubSubMessage in the queue with the earliest Timestamp,
+     * waiting up to the given timeout for its time in the queue to exceed the delay
+     * @param timeout how long to wait before giving up, in units of unit
+     * @param unit the unit of timeout, is not null
+     * @return the next PubSubMessage and PubSubMessage.NO_MSG if no suitable message
+     *         became available before the timeout elapsed
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    PubSubMessage poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Maintain the peak load for a time window incrementally, so that
+     * getPeakLoad(timeWindow) answers in O(1) without scanning the history
+     * @param timeWindow length of time of the window, must be >= 0
+     */
+    void registerPeakLoadWindow(int timeWindow);
+
+    /**
+     * Get the maximum number of operations performed on the queue over any window
+     * of time (the operations of interest are add and getNext)
+     * @param timeWindow length of time of the window, must be >= 0
+     * @return the maximum number of operations performed in the time window
+     */
+    int getPeakLoad(int timeWindow);
+
+    /**
+     * Remove all TransientPubSubMessages from the queue
+     * if their time in the queue exceeds their lifetime
+     */
+    void removeTransientMsg();
+}
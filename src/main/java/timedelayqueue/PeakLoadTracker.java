@@ -0,0 +1,81 @@
+package main.java.timedelayqueue;
+
+// Description: A PeakLoadTracker maintains, incrementally, the maximum number of operations
+//              recorded within any window of a fixed length, so that the peak load for
+//              that window can be read in O(1) instead of re-scanning a history.
+
+// Representation Invariant: timeWindow >= 0 and never changes.
+//                           The ring buffer holds size timestamps starting at start, in non-decreasing order,
+//                           and all of them are within timeWindow of the most recent one.
+//                           peak >= size and peak never decreases.
+
+// Abstraction Function: AF(t) = PeakLoadTracker such that
+//                          t.timeWindow = length of the window being tracked
+//                          t.window = timestamps of the operations in the window ending at the latest operation
+//                          t.peak = the largest number of operations seen in any window of length t.timeWindow
+
+// Thread safety: record() is only called by the owning queue while it holds a lock that serializes
+//                those calls (the TimeDelayQueue monitor, or the tracker itself for a
+//                ConcurrentTimeDelayQueue), so the ring buffer is never modified concurrently. The peak is volatile,
+//                so getPeak() can be called from any thread without taking the queue's monitor
+//                and always observes the value published by the latest record().
+
+class PeakLoadTracker {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int timeWindow;
+    private long[] window;
+    private int start = 0;
+    private int size = 0;
+    private volatile int peak = 0;
+
+    /**
+     * Create a new PeakLoadTracker
+     * @param timeWindow length of time of the window to track, must be >= 0
+     */
+    PeakLoadTracker(int timeWindow) {
+        this.timeWindow = timeWindow;
+        this.window = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Record an operation, updating the peak load
+     * @param timestamp the time of the operation, not earlier than any previously recorded
+     * modifies: this
+     */
+    void record(long timestamp) {
+        // Drop operations that are no longer within the window ending at this one
+        while (size > 0 && window[start] < timestamp - timeWindow) {
+            start = (start + 1) % window.length;
+            size--;
+        }
+
+        if (size == window.length) {
+            grow();
+        }
+        window[(start + size) % window.length] = timestamp;
+        size++;
+
+        if (size > peak) {
+            peak = size;
+        }
+    }
+
+    /**
+     * Get the maximum number of operations recorded over any window of this.timeWindow
+     * @return the peak load for this window
+     */
+    int getPeak() {
+        return peak;
+    }
+
+    // double the capacity of the ring buffer, moving its contents to the front
+    private void grow() {
+        long[] larger = new long[window.length * 2];
+        for (int i = 0; i < size; i++) {
+            larger[i] = window[(start + i) % window.length];
+        }
+        window = larger;
+        start = 0;
+    }
+}
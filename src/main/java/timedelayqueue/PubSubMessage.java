@@ -2,6 +2,7 @@ package main.java.timedelayqueue;
 
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
@@ -17,10 +18,15 @@ public class PubSubMessage implements TimestampedObject {
     private final String content;
     private final boolean isTransient;
     private final UUID sender;
-    private final List<UUID> receiver;
+    private final ReceiverSet receiver;
+    // the receivers in the order they were given, including any duplicates,
+    // or null if that is the order of receiver (as for a single receiver)
+    private final List<UUID> receiverList;
     private final MessageType type;
     private UUID id;
     private Timestamp timestamp;
+    // the timestamp as epoch milliseconds, so hot paths can read it without cloning
+    private final long timestampMillis;
 
     // create a PubSubMessage instance with explicit args;
     // content should be in JSON format to accommodate a variety of
@@ -29,11 +35,12 @@ public class PubSubMessage implements TimestampedObject {
                          UUID sender, UUID receiver, String content, MessageType type) {
         this.id = id;
         this.timestamp = timestamp;
+        this.timestampMillis = timestamp.getTime();
         this.sender = sender;
         this.isTransient = false;
         this.content = content;
-        this.receiver = new ArrayList<>();
-        this.receiver.add(receiver);
+        this.receiver = ReceiverSet.of(receiver);
+        this.receiverList = null;
         this.type = type;
     }
 
@@ -43,8 +50,26 @@ public class PubSubMessage implements TimestampedObject {
                          UUID sender, List<UUID> receiver, String content, MessageType type) {
         this.id = id;
         this.timestamp = timestamp;
+        this.timestampMillis = timestamp.getTime();
         this.sender = sender;
-        this.receiver = new ArrayList<>(receiver);
+        this.receiver = ReceiverSet.of(receiver);
+        this.receiverList = listedOrder(receiver, this.receiver);
+        this.isTransient = false;
+        this.content = content;
+        this.type = type;
+    }
+
+    // create a PubSubMessage instance with explicit args
+    // the receiver set is shared, not copied, so one set can be
+    // used for every message sent to the same group of users
+    public PubSubMessage(UUID id, Timestamp timestamp,
+                         UUID sender, ReceiverSet receiver, String content, MessageType type) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.timestampMillis = timestamp.getTime();
+        this.sender = sender;
+        this.receiver = receiver;
+        this.receiverList = null;
         this.isTransient = false;
         this.content = content;
         this.type = type;
@@ -72,6 +97,22 @@ public class PubSubMessage implements TimestampedObject {
         );
     }
 
+    // an unmodifiable copy of receivers, or null if they are in the order of set with no duplicates
+    private static List<UUID> listedOrder(List<UUID> receivers, ReceiverSet set) {
+        if (receivers.size() == set.size()) {
+            boolean sameOrder = true;
+            for (int i = 0; i < receivers.size() && sameOrder; i++) {
+                UUID listed = receivers.get(i);
+                sameOrder = listed.getMostSignificantBits() == set.mostSignificantBits(i)
+                        && listed.getLeastSignificantBits() == set.leastSignificantBits(i);
+            }
+            if (sameOrder) {
+                return null;
+            }
+        }
+        return Collections.unmodifiableList(new ArrayList<>(receivers));
+    }
+
     @Override
     public UUID getId() {
         return id;
@@ -82,6 +123,11 @@ public class PubSubMessage implements TimestampedObject {
         return (Timestamp) timestamp.clone();
     }
 
+    @Override
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
     // obtain message content
     // note that this will be in JSON format
     public String getContent() {
@@ -97,8 +143,25 @@ public class PubSubMessage implements TimestampedObject {
         return sender;
     }
 
+    // a copy of the receivers, in the order they were given and including any duplicates;
+    // prefer getReceivers() or isReceiver(), which do not copy
     public List<UUID> getReceiver() {
-        return new ArrayList<>(receiver);
+        return receiverList != null ? new ArrayList<>(receiverList) : receiver.toList();
+    }
+
+    // the distinct receivers, as an immutable set in sorted order that can be read without copying
+    public ReceiverSet getReceivers() {
+        return receiver;
+    }
+
+    // the receivers in the order they were given, or null if that is the order of getReceivers()
+    List<UUID> getListedReceivers() {
+        return receiverList;
+    }
+
+    // is the user one of the receivers of this message?
+    public boolean isReceiver(UUID user) {
+        return receiver.contains(user);
     }
 
     // is the message transient?
@@ -0,0 +1,335 @@
+package main.java.timedelayqueue;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A compact binary wire format for <code>PubSubMessage</code>s and
+ * <code>TransientPubSubMessage</code>s, encoded to and decoded from
+ * a <code>ByteBuffer</code> without going through reflection or JSON.
+ *
+ * <p>
+ * A message is laid out as:
+ * <code>[flags][type][id][sender][timestamp][lifetime][receiver count][receivers][content length][content]</code>
+ * where flags is one byte (bit 0 set for transient messages, bit 1 set if the
+ * receivers are listed in the order they were given rather than sorted), type is the
+ * <code>BasicMessageType</code> ordinal as a varint, UUIDs are fixed-width
+ * (two big-endian longs), timestamp and lifetime are zig-zag varints
+ * (lifetime is present only for transient messages), the counts are varints and
+ * content is UTF-8.
+ * </p>
+ *
+ * <p>
+ * Timestamps are stored in milliseconds; sub-millisecond nanos are not preserved.
+ * </p>
+ */
+public final class PubSubMessageCodec {
+
+    private static final int TRANSIENT_FLAG = 1;
+    private static final int LISTED_FLAG = 2;
+    private static final int UUID_BYTES = 2 * Long.BYTES;
+
+    private PubSubMessageCodec() {
+    }
+
+    /**
+     * Compute the number of bytes encode() will write for a message
+     *
+     * @param msg the message to measure, whose type is a BasicMessageType
+     * @return the encoded size of msg, in bytes
+     */
+    public static int encodedSize(PubSubMessage msg) {
+        int contentBytes = utf8Length(msg.getContent());
+        List<UUID> listed = msg.getListedReceivers();
+        int receivers = listed != null ? listed.size() : msg.getReceivers().size();
+
+        int size = 1 + varintSize(typeOrdinal(msg)) + 2 * UUID_BYTES;
+        size += varlongSize(zigzag(msg.getTimestampMillis()));
+        if (msg.isTransient()) {
+            size += varlongSize(zigzag(((TransientPubSubMessage) msg).getLifetime()));
+        }
+        size += varintSize(receivers) + receivers * UUID_BYTES;
+        size += varintSize(contentBytes) + contentBytes;
+        return size;
+    }
+
+    /**
+     * Encode a message into a buffer at its position, advancing the position
+     * past the encoded message
+     *
+     * @param msg the message to encode, whose type is a BasicMessageType
+     * @param out the buffer to write to, with at least encodedSize(msg) bytes remaining
+     * @throws java.nio.BufferOverflowException if out does not have enough room
+     */
+    public static void encode(PubSubMessage msg, ByteBuffer out) {
+        List<UUID> listed = msg.getListedReceivers();
+        out.put((byte) ((msg.isTransient() ? TRANSIENT_FLAG : 0) | (listed != null ? LISTED_FLAG : 0)));
+        putVarint(out, typeOrdinal(msg));
+        putUUID(out, msg.getId());
+        putUUID(out, msg.getSender());
+        putVarlong(out, zigzag(msg.getTimestampMillis()));
+        if (msg.isTransient()) {
+            putVarlong(out, zigzag(((TransientPubSubMessage) msg).getLifetime()));
+        }
+
+        if (listed != null) {
+            putVarint(out, listed.size());
+            for (UUID receiver : listed) {
+                putUUID(out, receiver);
+            }
+        } else {
+            ReceiverSet receivers = msg.getReceivers();
+            putVarint(out, receivers.size());
+            for (int i = 0; i < receivers.size(); i++) {
+                out.putLong(receivers.mostSignificantBits(i));
+                out.putLong(receivers.leastSignificantBits(i));
+            }
+        }
+
+        String content = msg.getContent();
+        putVarint(out, utf8Length(content));
+        putUtf8(out, content);
+    }
+
+    /**
+     * Decode a message from a buffer at its position, advancing the position
+     * past the encoded message
+     *
+     * @param in the buffer to read from, positioned at a message written by encode()
+     * @return the decoded message, a TransientPubSubMessage if a transient message was encoded
+     * @throws IllegalArgumentException if the encoding is malformed
+     */
+    public static PubSubMessage decode(ByteBuffer in) {
+        try {
+            byte flags = in.get();
+            boolean isTransient = (flags & TRANSIENT_FLAG) != 0;
+            boolean isListed = (flags & LISTED_FLAG) != 0;
+            int ordinal = getVarint(in);
+            if (ordinal < 0 || ordinal >= BasicMessageType.values().length) {
+                throw new IllegalArgumentException("Unknown message type " + ordinal);
+            }
+            MessageType type = BasicMessageType.values()[ordinal];
+            UUID id = getUUID(in);
+            UUID sender = getUUID(in);
+            Timestamp timestamp = new Timestamp(unzigzag(getVarlong(in)));
+            int lifetime = isTransient ? (int) unzigzag(getVarlong(in)) : 0;
+
+            int receiverCount = getVarint(in);
+            if (receiverCount < 0 || receiverCount > in.remaining() / UUID_BYTES) {
+                throw new IllegalArgumentException("Bad receiver count " + receiverCount);
+            }
+            List<UUID> listed = null;
+            ReceiverSet receivers = null;
+            if (isListed) {
+                listed = new ArrayList<>(receiverCount);
+                for (int i = 0; i < receiverCount; i++) {
+                    listed.add(getUUID(in));
+                }
+            } else {
+                long[] receiverBits = new long[2 * receiverCount];
+                for (int i = 0; i < receiverBits.length; i++) {
+                    receiverBits[i] = in.getLong();
+                }
+                receivers = ReceiverSet.fromOwnedBits(receiverBits);
+            }
+
+            int contentBytes = getVarint(in);
+            if (contentBytes < 0 || contentBytes > in.remaining()) {
+                throw new IllegalArgumentException("Bad content length " + contentBytes);
+            }
+            String content = getUtf8(in, contentBytes);
+
+            if (isListed) {
+                return isTransient
+                        ? new TransientPubSubMessage(id, timestamp, sender, listed, content, type, lifetime)
+                        : new PubSubMessage(id, timestamp, sender, listed, content, type);
+            }
+            if (isTransient) {
+                return new TransientPubSubMessage(id, timestamp, sender, receivers, content, type, lifetime);
+            }
+            return new PubSubMessage(id, timestamp, sender, receivers, content, type);
+        }
+        catch (BufferUnderflowException bue) {
+            throw new IllegalArgumentException("Truncated message", bue);
+        }
+    }
+
+    /**
+     * Read the id of an encoded message without decoding the rest of it
+     *
+     * @param in the buffer to read from, positioned at a message written by encode();
+     *           its position is not changed
+     * @return the id of the message
+     * @throws IllegalArgumentException if the encoding is malformed
+     */
+    public static UUID decodeId(ByteBuffer in) {
+        ByteBuffer header = in.duplicate();
+        try {
+            header.get();
+            getVarint(header);
+            return getUUID(header);
+        }
+        catch (BufferUnderflowException bue) {
+            throw new IllegalArgumentException("Truncated message", bue);
+        }
+    }
+
+    /**
+     * Read when an encoded message expires without decoding the rest of it
+     *
+     * @param in the buffer to read from, positioned at a message written by encode();
+     *           its position is not changed
+     * @return the timestamp plus the lifetime, in milliseconds, of a transient message,
+     *         or Long.MAX_VALUE if the message is not transient
+     * @throws IllegalArgumentException if the encoding is malformed
+     */
+    public static long decodeExpiry(ByteBuffer in) {
+        ByteBuffer header = in.duplicate();
+        try {
+            boolean isTransient = (header.get() & TRANSIENT_FLAG) != 0;
+            getVarint(header);
+            header.position(header.position() + 2 * UUID_BYTES);
+            long timestamp = unzigzag(getVarlong(header));
+            return isTransient ? timestamp + (int) unzigzag(getVarlong(header)) : Long.MAX_VALUE;
+        }
+        catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Truncated message", e);
+        }
+    }
+
+    private static int typeOrdinal(PubSubMessage msg) {
+        if (!(msg.getType() instanceof BasicMessageType)) {
+            throw new IllegalArgumentException("Only BasicMessageType messages can be encoded");
+        }
+        return ((BasicMessageType) msg.getType()).ordinal();
+    }
+
+    static void putUUID(ByteBuffer out, UUID uuid) {
+        out.putLong(uuid.getMostSignificantBits());
+        out.putLong(uuid.getLeastSignificantBits());
+    }
+
+    static UUID getUUID(ByteBuffer in) {
+        return new UUID(in.getLong(), in.getLong());
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int varintSize(int value) {
+        return varlongSize(value & 0xffffffffL);
+    }
+
+    private static int varlongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer out, int value) {
+        putVarlong(out, value & 0xffffffffL);
+    }
+
+    private static void putVarlong(ByteBuffer out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer in) {
+        long value = getVarlong(in);
+        if ((value & ~0xffffffffL) != 0) {
+            throw new IllegalArgumentException("Varint out of range");
+        }
+        return (int) value;
+    }
+
+    private static long getVarlong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    // the number of bytes s takes in UTF-8, counting unpaired surrogates as '?' like String.getBytes()
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    // write s to out as UTF-8 one character at a time, without an intermediate byte[]
+    private static void putUtf8(ByteBuffer out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xc0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xf0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (cp & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xe0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    // read length bytes of UTF-8 from in, decoding straight from a heap buffer's backing array
+    private static String getUtf8(ByteBuffer in, int length) {
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes, 0, length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        return s;
+    }
+}
@@ -0,0 +1,210 @@
+package main.java.timedelayqueue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+// Description: A ReceiverSet is an immutable, compact set of receiver ids for a PubSubMessage.
+//              The ids are stored as (most significant, least significant) pairs of longs in one
+//              sorted long[], so membership is a binary search and the receivers can be iterated
+//              by index without allocating. Because it is immutable, one ReceiverSet can be shared
+//              by every message sent to the same audience instead of copying the list per message.
+
+// Representation Invariant: bits.length is even. The pairs (bits[2i], bits[2i + 1]) are strictly
+//                           increasing, comparing the first element and then the second as signed longs,
+//                           so there are no duplicates.
+
+// Abstraction Function: AF(r) = the set { new UUID(r.bits[2i], r.bits[2i + 1]) : 0 <= i < r.bits.length / 2 }
+
+// Thread safety: A ReceiverSet is immutable: bits is never modified after construction
+//                and never escapes, so it can be shared freely between threads.
+
+public final class ReceiverSet {
+
+    public static final ReceiverSet EMPTY = new ReceiverSet(new long[0]);
+
+    private final long[] bits;
+    private final int hashCode;
+
+    private ReceiverSet(long[] bits) {
+        this.bits = bits;
+        this.hashCode = Arrays.hashCode(bits);
+    }
+
+    /**
+     * Create a ReceiverSet holding a single receiver
+     * @param receiver the receiver, is not null
+     * @return a ReceiverSet containing only receiver
+     */
+    public static ReceiverSet of(UUID receiver) {
+        return new ReceiverSet(new long[] {
+            receiver.getMostSignificantBits(),
+            receiver.getLeastSignificantBits()
+        });
+    }
+
+    /**
+     * Create a ReceiverSet from a collection of receivers; duplicates are dropped
+     * @param receivers the receivers, none of which is null
+     * @return a ReceiverSet containing exactly the receivers given
+     */
+    public static ReceiverSet of(Collection<UUID> receivers) {
+        if (receivers.isEmpty()) {
+            return EMPTY;
+        }
+        UUID[] sorted = receivers.toArray(new UUID[0]);
+        Arrays.sort(sorted, ReceiverSet::compare);
+
+        long[] bits = new long[2 * sorted.length];
+        int size = 0;
+        for (UUID receiver : sorted) {
+            long msb = receiver.getMostSignificantBits();
+            long lsb = receiver.getLeastSignificantBits();
+            if (size == 0 || bits[2 * size - 2] != msb || bits[2 * size - 1] != lsb) {
+                bits[2 * size] = msb;
+                bits[2 * size + 1] = lsb;
+                size++;
+            }
+        }
+        return new ReceiverSet(size == sorted.length ? bits : Arrays.copyOf(bits, 2 * size));
+    }
+
+    /**
+     * Create a ReceiverSet from (most significant, least significant) pairs of id bits
+     * @param bits the pairs, in any order, of even length; not retained
+     * @return a ReceiverSet containing the ids given
+     */
+    public static ReceiverSet fromBits(long[] bits) {
+        return fromOwnedBits(bits.clone());
+    }
+
+    /**
+     * Create a ReceiverSet from (most significant, least significant) pairs of id bits,
+     * taking ownership of the array instead of copying it
+     * @param bits the pairs, in any order, of even length; retained if already strictly
+     *             sorted, so the caller must not modify it afterwards
+     * @return a ReceiverSet containing the ids given
+     */
+    static ReceiverSet fromOwnedBits(long[] bits) {
+        if (bits.length % 2 != 0) {
+            throw new IllegalArgumentException("bits must hold whole pairs");
+        }
+        for (int i = 2; i < bits.length; i += 2) {
+            if (compare(bits[i - 2], bits[i - 1], bits[i], bits[i + 1]) >= 0) {
+                // not already strictly sorted, so sort and drop duplicates the slow way
+                List<UUID> receivers = new ArrayList<>();
+                for (int j = 0; j < bits.length; j += 2) {
+                    receivers.add(new UUID(bits[j], bits[j + 1]));
+                }
+                return of(receivers);
+            }
+        }
+        return bits.length == 0 ? EMPTY : new ReceiverSet(bits);
+    }
+
+    /**
+     * Get the number of receivers in this set
+     * @return the number of receivers
+     */
+    public int size() {
+        return bits.length / 2;
+    }
+
+    /**
+     * Check whether a user is a receiver, without allocating
+     * @param receiver the user to check for
+     * @return true if receiver is in this set
+     */
+    public boolean contains(UUID receiver) {
+        return indexOf(receiver.getMostSignificantBits(), receiver.getLeastSignificantBits()) >= 0;
+    }
+
+    /**
+     * Get the most significant bits of the i-th receiver, in sorted order
+     * @param i the index of the receiver, 0 <= i < size()
+     * @return the most significant bits of the receiver's id
+     */
+    public long mostSignificantBits(int i) {
+        return bits[2 * i];
+    }
+
+    /**
+     * Get the least significant bits of the i-th receiver, in sorted order
+     * @param i the index of the receiver, 0 <= i < size()
+     * @return the least significant bits of the receiver's id
+     */
+    public long leastSignificantBits(int i) {
+        return bits[2 * i + 1];
+    }
+
+    /**
+     * Get the i-th receiver, in sorted order
+     * @param i the index of the receiver, 0 <= i < size()
+     * @return the receiver's id
+     */
+    public UUID get(int i) {
+        return new UUID(bits[2 * i], bits[2 * i + 1]);
+    }
+
+    /**
+     * Copy the receivers into a new list
+     * @return a new, mutable list of the receivers, in sorted order
+     */
+    public List<UUID> toList() {
+        List<UUID> receivers = new ArrayList<>(size());
+        for (int i = 0; i < size(); i++) {
+            receivers.add(get(i));
+        }
+        return receivers;
+    }
+
+    // binary search for the pair (msb, lsb), returning its index or a negative number if absent
+    private int indexOf(long msb, long lsb) {
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(bits[2 * mid], bits[2 * mid + 1], msb, lsb);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static int compare(UUID a, UUID b) {
+        return compare(a.getMostSignificantBits(), a.getLeastSignificantBits(),
+            b.getMostSignificantBits(), b.getLeastSignificantBits());
+    }
+
+    private static int compare(long msb1, long lsb1, long msb2, long lsb2) {
+        int byMsb = Long.compare(msb1, msb2);
+        return byMsb != 0 ? byMsb : Long.compare(lsb1, lsb2);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof ReceiverSet) {
+            ReceiverSet that = (ReceiverSet) other;
+            return this.hashCode == that.hashCode && Arrays.equals(this.bits, that.bits);
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+}
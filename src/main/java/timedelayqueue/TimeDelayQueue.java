@@ -1,29 +1,42 @@
 package main.java.timedelayqueue;
 
 
-import java.sql.Timestamp;
 import java.util.Comparator;
 import java.util.PriorityQueue;
 import java.util.UUID;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 // Description: A TimeDelayQueue stores messages, the total number of messages ever added
 //              and a history of the operations performed on the queue (add/getNext).
 //              The TimeDelayQueue uses TimeStamps and System time to determine when
 //              a message can be removed and when transient message are out of their lifetime
 
-// Representation Invariant: Returns objects in an order that is determined by their individual timestamps.
+// Representation Invariant: Returns objects in an order that is determined by their individual timestamps,
+//                           with ties broken by the order in which the objects were added.
+//                           The live entries are exactly those mapped in index (by message id); entries that have
+//                           been dequeued or have expired are marked removed and may linger in the messages and
+//                           expiries heaps until they reach the head, where they are discarded.
+//                           Every transient entry in index is also in expiries.
 //                           Stores a delay that does not change after being assigned during initialization.
+//                           The history holds at most historyCapacity timestamps, oldest first,
+//                           in non-decreasing order; once full the oldest timestamp is overwritten.
 //                           Increments the total message count when a message is added
 //                           the count is retained and never decrements.
 //                           Objects in the time delay queue are either persistent or transient.
 
 // Abstraction Function: AF(q) = TimeDelayQueue such that
-//                          q.messages = Objects in TimeDelayQueue
+//                          q.messages = Objects in TimeDelayQueue (as a min-heap on timestamp, then insertion order)
+//                          q.index = message ids of the objects in TimeDelayQueue
+//                          q.expiries = transient objects in TimeDelayQueue (as a min-heap on timestamp + lifetime)
 //                          q.totalMessageCount = counter of all objects that have been added
 //                          q.delay = delay for getNext() behavior
-//                          q.history = all timestamps of when operations have occurred
+//                          q.log = durable record of q.messages, or null if the queue is not logged
+//                          q.peakLoadTrackers = running peak loads for the windows registered up front
+//                          q.history = timestamps of the most recent q.historyCapacity operations, as a ring buffer
+//                                      starting at q.historyStart and holding q.historySize entries;
+//                                      the buffer starts small and grows until it reaches q.historyCapacity
 
 // Thread safety: We use the synchronized keyword on the methods below so that
 //                threads operate in a mutually exclusive manner, using the class itself
@@ -31,20 +44,41 @@ import java.util.stream.Collectors;
 //
 //                The methods, add(), getTotalMsgCount(), getNext(), getPeakLoad(), removeTransientMsg():
 //                could face concurrent modification and require synchronization of their shared resources
-//                mainly the list of messages and the history list.
+//                mainly the list of messages and the history buffer.
 //
-//                For example, getPeakLoad() could be iterating over the history list
-//                while another thread is modifying the history list by adding a message to the queue.
+//                For example, getPeakLoad() could be iterating over the history buffer
+//                while another thread is modifying the history buffer by adding a message to the queue.
+//
+//                The running peak loads in peakLoadTrackers are updated under the monitor by addToHistory(),
+//                but publish their result through a volatile field, so getPeakLoad() for a registered window
+//                never takes the monitor and cannot block add()/getNext().
+//
+//                The blocking consumers, take() and poll(), wait() on the same monitor and are
+//                woken by add() whenever a new message becomes the head of the queue,
+//                so they never hold the lock while parked.
 //
 //                Note, we opted for a more coarse grained locking mechanism to optimize for safety
 //                over efficiency. This design choice allows for modifications to be implemented
 //                later that could increase the efficiency. The other way around or starting with efficiency
 //                would be much less robust/safe.
 
-public class TimeDelayQueue {
+public class TimeDelayQueue implements MessageQueue {
+
+    // Default number of operations retained for getPeakLoad()
+    public static final int DEFAULT_HISTORY_CAPACITY = 1 << 16;
+
+    // Store all current messages in a heap ordered by timestamp, then by insertion order
+    private PriorityQueue<QueueEntry> messages;
+
+    // Index the current messages by id so that duplicates are detected in O(1)
+    private Map<UUID, QueueEntry> index;
 
-    // Store all current messages in a list
-    private List<PubSubMessage> messages;
+    // Store the transient messages in a heap ordered by the time they expire,
+    // so removing expired messages only touches the ones that have expired
+    private PriorityQueue<QueueEntry> expiries;
+
+    // Sequence number handed to the next message added, used to break timestamp ties
+    private long nextSequence = 0;
 
     // Store the total number of messages added (irrespective of those that have been removed)
     long totalMessageCount = 0;
@@ -52,14 +86,56 @@ public class TimeDelayQueue {
     // Store the delay of the TimeDelayQueue (initialized in constructor)
     int delay;
 
-    // Store all operations that have occurred by storing the timestamp in a list
-    // Assume that multiple operations cannot happen at the same millisecond
-    List<Long> history;
+    // Store the timestamps of the most recent operations in a ring buffer,
+    // overwriting the oldest once historyCapacity operations are retained
+    // the buffer grows on demand, so a queue that sees few operations stays small
+    private static final int INITIAL_HISTORY_LENGTH = 16;
+    long[] history;
+    int historyCapacity;
+    int historyStart = 0;
+    int historySize = 0;
+
+    // Durable record of the messages in the queue, or null if the queue is not logged
+    private final MessageLog log;
+
+    // Running peak loads, keyed by time window, for windows registered with registerPeakLoadWindow()
+    private final Map<Integer, PeakLoadTracker> peakLoadTrackers = new ConcurrentHashMap<>();
+
+    // a heap entry: the message along with its timestamp, expiry time and insertion order,
+    // captured once when the message is added so comparisons don't allocate
+    private static class QueueEntry {
+        final PubSubMessage msg;
+        final long timestamp;
+        final long expiry;
+        final long sequence;
+
+        // set once the message has been dequeued or has expired,
+        // so that it is discarded when it reaches the head of either heap
+        boolean removed = false;
+
+        QueueEntry(PubSubMessage msg, long sequence) {
+            this.msg = msg;
+            this.timestamp = msg.getTimestampMillis();
+            this.expiry = msg.isTransient()
+                    ? timestamp + (long) ((TransientPubSubMessage) msg).getLifetime()
+                    : Long.MAX_VALUE;
+            this.sequence = sequence;
+        }
+    }
 
-    // a comparator to sort messages
-    private class PubSubMessageComparator implements Comparator<PubSubMessage> {
-        public int compare(PubSubMessage msg1, PubSubMessage msg2) {
-            return msg1.getTimestamp().compareTo(msg2.getTimestamp());
+    // a comparator to order messages by timestamp, breaking ties by insertion order
+    private static class QueueEntryComparator implements Comparator<QueueEntry> {
+        public int compare(QueueEntry e1, QueueEntry e2) {
+            int byTime = Long.compare(e1.timestamp, e2.timestamp);
+            return byTime != 0 ? byTime : Long.compare(e1.sequence, e2.sequence);
+        }
+    }
+
+    // a comparator to order transient messages by expiry time, breaking ties by insertion order
+    private static class ExpiryComparator implements Comparator<QueueEntry> {
+        public int compare(QueueEntry e1, QueueEntry e2) {
+            int byExpiry = Long.compare(e1.expiry, e2.expiry);
+            return byExpiry != 0 ? byExpiry : Long.compare(e1.sequence, e2.sequence);
         }
     }
 
@@ -68,13 +144,89 @@ public class TimeDelayQueue {
      * @param delay the delay, in milliseconds, that the queue can tolerate, >= 0
      */
     public TimeDelayQueue(int delay) {
+        this(delay, DEFAULT_HISTORY_CAPACITY);
+    }
+
+    /**
+     * Create a new TimeDelayQueue that retains a bounded operation history
+     * @param delay the delay, in milliseconds, that the queue can tolerate, >= 0
+     * @param historyCapacity the number of most recent operations retained
+     *                        for getPeakLoad(), > 0
+     */
+    public TimeDelayQueue(int delay, int historyCapacity) {
+        this(delay, historyCapacity, null);
+    }
+
+    /**
+     * Create a new TimeDelayQueue backed by a durable log, recovering the
+     * messages that were pending in the log; recovered messages count towards
+     * the total message count but are not operations in the history
+     * @param delay the delay, in milliseconds, that the queue can tolerate, >= 0
+     * @param log the log to recover from and record every add and removal in, is not null
+     */
+    public TimeDelayQueue(int delay, MessageLog log) {
+        this(delay, DEFAULT_HISTORY_CAPACITY, log);
+    }
+
+    /**
+     * Create a new TimeDelayQueue that retains a bounded operation history,
+     * optionally backed by a durable log
+     * @param delay the delay, in milliseconds, that the queue can tolerate, >= 0
+     * @param historyCapacity the number of most recent operations retained
+     *                        for getPeakLoad(), > 0
+     * @param log the log to recover from and record every add and removal in,
+     *            or null if the queue is not logged
+     */
+    public TimeDelayQueue(int delay, int historyCapacity, MessageLog log) {
+        if (historyCapacity <= 0) {
+            throw new IllegalArgumentException("historyCapacity must be positive");
+        }
         this.delay = delay;
-        this.messages = new ArrayList<>();
-        this.history = new ArrayList<>();
+        this.messages = new PriorityQueue<>(new QueueEntryComparator());
+        this.index = new HashMap<>();
+        this.expiries = new PriorityQueue<>(new ExpiryComparator());
+        this.historyCapacity = historyCapacity;
+        this.history = new long[Math.min(INITIAL_HISTORY_LENGTH, historyCapacity)];
+        this.log = log;
+
+        if (log != null) {
+            for (PubSubMessage msg : log.getRecovered()) {
+                insert(msg);
+            }
+        }
     }
 
     private synchronized void addToHistory() {
-        history.add(System.currentTimeMillis());
+        long currentTime = System.currentTimeMillis();
+        if (historySize == history.length && history.length < historyCapacity) {
+            growHistory();
+        }
+        if (historySize < history.length) {
+            history[(historyStart + historySize) % history.length] = currentTime;
+            historySize++;
+        } else {
+            history[historyStart] = currentTime;
+            historyStart = (historyStart + 1) % history.length;
+        }
+
+        for (PeakLoadTracker tracker : peakLoadTrackers.values()) {
+            tracker.record(currentTime);
+        }
+    }
+
+    // double the length of the history buffer, up to historyCapacity, moving its contents to the front
+    private void growHistory() {
+        long[] larger = new long[(int) Math.min((long) history.length * 2, historyCapacity)];
+        for (int i = 0; i < historySize; i++) {
+            larger[i] = historyAt(i);
+        }
+        history = larger;
+        historyStart = 0;
+    }
+
+    // the i-th oldest retained operation timestamp, 0 <= i < historySize
+    private long historyAt(int i) {
+        return history[(historyStart + i) % history.length];
     }
 
     /**
@@ -82,6 +234,7 @@ public class TimeDelayQueue {
      * @param msg the message to add
      * @return false is a message with the same id exists
      */
+    @Override
     public synchronized boolean add(PubSubMessage msg) {
         addToHistory();
 
@@ -90,15 +243,86 @@ public class TimeDelayQueue {
         //      before accessing the TimeDelayQueue for external operations
         removeTransientMsg();
 
+        QueueEntry head = peekLive();
+        logAdd(msg);
+        boolean added = insert(msg);
+
+        // A new head may be eligible sooner than the one blocked consumers are waiting on
+        if (peekLive() != head) {
+            notifyAll();
+        }
+        return added;
+    }
+
+    /**
+     * Add a batch of messages to the TimeDelayQueue, taking the lock and
+     * removing expired transient messages only once for the whole batch.
+     * Each message added counts as one operation in the history.
+     * @param msgs the messages to add, is not null
+     * @return for each message, in the order given, false if a message with the same id
+     *         already existed (including earlier in the batch), true otherwise
+     */
+    @Override
+    public synchronized List<Boolean> addAll(Collection<? extends PubSubMessage> msgs) {
+        List<PubSubMessage> batch = new ArrayList<>(msgs);
+        for (int i = 0; i < batch.size(); i++) {
+            addToHistory();
+        }
+
+        removeTransientMsg();
+
+        // Insert the batch in timestamp order (stable, so ties keep the order given):
+        // messages newer than everything queued then settle at the bottom of the heap at once
+        Integer[] order = new Integer[batch.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> batch.get(i).getTimestampMillis()));
+
+        QueueEntry head = peekLive();
+        Boolean[] added = new Boolean[batch.size()];
+        for (int i : order) {
+            logAdd(batch.get(i));
+            added[i] = insert(batch.get(i));
+        }
+
+        if (peekLive() != head) {
+            notifyAll();
+        }
+        return Arrays.asList(added);
+    }
+
+    // record msg in the log ahead of adding it, unless it is a duplicate or the queue is not logged
+    private void logAdd(PubSubMessage msg) {
+        if (log != null && !index.containsKey(msg.getId())) {
+            log.append(msg);
+        }
+    }
+
+    // record in the log that entry is no longer in the queue
+    private void logRemove(QueueEntry entry) {
+        if (log != null) {
+            log.remove(entry.msg.getId());
+        }
+    }
+
+    // add msg to the heaps and the index unless a message with the same id is queued,
+    // without recording history or removing expired messages
+    private boolean insert(PubSubMessage msg) {
         // The message that was removed can be added back again
         // So put this in a seperate conditional
-        if (!messages.contains(msg)) {
-            messages.add(msg);
-            Collections.sort(messages, new PubSubMessageComparator());
-            totalMessageCount++;
-            return true;
+        if (index.containsKey(msg.getId())) {
+            return false;
+        }
+
+        QueueEntry entry = new QueueEntry(msg, nextSequence++);
+        messages.add(entry);
+        index.put(msg.getId(), entry);
+        if (msg.isTransient()) {
+            expiries.add(entry);
         }
-        return false;
+        totalMessageCount++;
+        return true;
     }
 
     /**
@@ -106,6 +330,7 @@ public class TimeDelayQueue {
      * by this TimeDelayQueue over the lifetime of the queue
      * @return the total number of objects added to the queue
      */
+    @Override
     public synchronized long getTotalMsgCount() {
         return this.totalMessageCount;
     }
@@ -115,11 +340,12 @@ public class TimeDelayQueue {
      * and whose time in the queue exceeds this.delay
      * @return the next PubSubMessage and PubSubMessage.NO_MSG if there is no suitable message
      */
+    @Override
     public synchronized PubSubMessage getNext() {
         addToHistory();
 
         // If nothing in queue, can't get next, return NO_MSG
-        if (messages.size() == 0) return PubSubMessage.NO_MSG;
+        if (index.isEmpty()) return PubSubMessage.NO_MSG;
 
         // Since we are interacting with the TimeDelayQueue, update to match RI
         // Specifically, remove all transient messages that are beyond their lifetime
@@ -127,43 +353,205 @@ public class TimeDelayQueue {
         removeTransientMsg();
 
         // There could be nothing left after removing the transient messages
-        if (messages.size() == 0) return PubSubMessage.NO_MSG;
-        PubSubMessage nextMsg = messages.get(0);
+        if (index.isEmpty()) return PubSubMessage.NO_MSG;
+
+        QueueEntry next = pollEligible(System.currentTimeMillis());
+        return next == null ? PubSubMessage.NO_MSG : next.msg;
+    }
 
-        Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
-        if (currentTimestamp.getTime() - nextMsg.getTimestamp().getTime() >= delay) {
-            messages.remove(nextMsg);
-            return nextMsg;
+    /**
+     * Remove every PubSubMessage whose time in the TimeDelayQueue exceeds this.delay,
+     * up to maxElements of them, in the order getNext() would return them.
+     * Each message removed counts as one operation in the history, and
+     * the call counts as one operation if nothing is removed.
+     * @param sink the collection to add the removed messages to, is not null
+     * @param maxElements the maximum number of messages to remove, >= 0
+     * @return the number of messages removed and added to sink
+     */
+    @Override
+    public synchronized int drainTo(Collection<? super PubSubMessage> sink, int maxElements) {
+        removeTransientMsg();
+
+        long currentTime = System.currentTimeMillis();
+        int drained = 0;
+        QueueEntry next;
+        while (drained < maxElements && (next = pollEligible(currentTime)) != null) {
+            sink.add(next.msg);
+            addToHistory();
+            drained++;
+        }
+
+        if (drained == 0) {
+            addToHistory();
         }
-        return PubSubMessage.NO_MSG;
+        return drained;
+    }
+
+    /**
+     * Get every PubSubMessage in the TimeDelayQueue, whether or not its time in the queue
+     * exceeds this.delay, without removing any of them. Transient messages beyond their
+     * lifetime are left out. The call does not count as an operation in the history.
+     * @return the messages, in the order getNext() would return them
+     */
+    @Override
+    public synchronized List<PubSubMessage> snapshot() {
+        long currentTime = System.currentTimeMillis();
+        List<QueueEntry> live = new ArrayList<>(index.size());
+        for (QueueEntry entry : index.values()) {
+            if (currentTime < entry.expiry) {
+                live.add(entry);
+            }
+        }
+        live.sort(new QueueEntryComparator());
+
+        List<PubSubMessage> msgs = new ArrayList<>(live.size());
+        for (QueueEntry entry : live) {
+            msgs.add(entry.msg);
+        }
+        return msgs;
+    }
+
+    /**
+     * Get the next PubSubMessage in the TimeDelayQueue with the earliest Timestamp,
+     * waiting if necessary until its time in the queue exceeds this.delay
+     * @return the next PubSubMessage, never PubSubMessage.NO_MSG
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    @Override
+    public synchronized PubSubMessage take() throws InterruptedException {
+        addToHistory();
+
+        while (true) {
+            removeTransientMsg();
+
+            long currentTime = System.currentTimeMillis();
+            QueueEntry next = pollEligible(currentTime);
+            if (next != null) {
+                return next.msg;
+            }
+
+            // Park until the head becomes eligible, or until add() brings in an earlier head
+            QueueEntry head = peekLive();
+            if (head == null) {
+                wait();
+            } else {
+                wait(head.timestamp + delay - currentTime);
+            }
+        }
+    }
+
+    /**
+     * Get the next PubSubMessage in the TimeDelayQueue with the earliest Timestamp,
+     * waiting up to the given timeout for its time in the queue to exceed this.delay
+     * @param timeout how long to wait before giving up, in units of unit
+     * @param unit the unit of timeout, is not null
+     * @return the next PubSubMessage and PubSubMessage.NO_MSG if no suitable message
+     *         became available before the timeout elapsed
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    @Override
+    public synchronized PubSubMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        addToHistory();
+
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (true) {
+            removeTransientMsg();
+
+            long currentTime = System.currentTimeMillis();
+            QueueEntry next = pollEligible(currentTime);
+            if (next != null) {
+                return next.msg;
+            }
+            if (currentTime >= deadline) {
+                return PubSubMessage.NO_MSG;
+            }
+
+            // Park until the head becomes eligible, the timeout elapses,
+            // or add() brings in an earlier head
+            long waitUntil = deadline;
+            QueueEntry head = peekLive();
+            if (head != null) {
+                waitUntil = Math.min(waitUntil, head.timestamp + delay);
+            }
+            wait(Math.max(1, waitUntil - currentTime));
+        }
+    }
+
+    // remove and return the head of the queue if its time in the queue exceeds this.delay,
+    // otherwise leave the queue unchanged and return null
+    private QueueEntry pollEligible(long currentTime) {
+        QueueEntry next = peekLive();
+        if (next == null || currentTime - next.timestamp < delay) {
+            return null;
+        }
+        messages.poll();
+        next.removed = true;
+        index.remove(next.msg.getId());
+        logRemove(next);
+        return next;
+    }
+
+    // the earliest message that has not been dequeued or expired, or null if there is none,
+    // discarding any removed entries at the head of the heap along the way
+    private QueueEntry peekLive() {
+        QueueEntry head = messages.peek();
+        while (head != null && head.removed) {
+            messages.poll();
+            head = messages.peek();
+        }
+        return head;
+    }
+
+    /**
+     * Maintain the peak load for a time window incrementally, so that
+     * getPeakLoad(timeWindow) answers in O(1) without scanning the history.
+     * The running peak starts from the operations still retained in the history
+     * and, unlike a scan, keeps counting operations after they are evicted from it.
+     * @param timeWindow length of time of the window, must be >= 0
+     */
+    @Override
+    public synchronized void registerPeakLoadWindow(int timeWindow) {
+        if (peakLoadTrackers.containsKey(timeWindow)) {
+            return;
+        }
+
+        PeakLoadTracker tracker = new PeakLoadTracker(timeWindow);
+        for (int i = 0; i < historySize; i++) {
+            tracker.record(historyAt(i));
+        }
+        peakLoadTrackers.put(timeWindow, tracker);
     }
 
     /**
      * Get the maximum number of operations performed on TimDelayQueue over any window
-     * of time (the operations of interest are add and getNext)
+     * of time (the operations of interest are add and getNext), considering only
+     * the operations still retained in the history unless the window was registered
+     * with registerPeakLoadWindow()
      * @param timeWindow length of time of the window, must be >= 0
      * @return the maximum number of operations performed in the time window
      **/
-    public synchronized int getPeakLoad(int timeWindow) {
-        int temp = 0;
-        int count = 0;
-        long end_timestamp;
-        int highest = 0;
-
-        for(int i = 0; i<history.size(); i++){
-            count = 0;
-            end_timestamp = history.get(i) +timeWindow;
-            temp = i;
-            // Check that iterator, temp, doesn't go outside history list
-            // Also stop once the current timestamps are beyond the starting timestamp + time window
-            while(temp< history.size()&& history.get(temp)<=end_timestamp){
-                count++;
-                temp++;
-            }
+    @Override
+    public int getPeakLoad(int timeWindow) {
+        PeakLoadTracker tracker = peakLoadTrackers.get(timeWindow);
+        if (tracker != null) {
+            return tracker.getPeak();
+        }
+        return scanPeakLoad(timeWindow);
+    }
 
-            if(count>highest){
-                highest = count;
+    // compute the peak load for timeWindow over the retained history
+    private synchronized int scanPeakLoad(int timeWindow) {
+        int highest = 0;
+        int end = 0;
+
+        // The history is in non-decreasing order, so as the window start moves forward
+        // its end can only move forward too: a single pass with two pointers suffices
+        for (int start = 0; start < historySize; start++) {
+            long endTimestamp = historyAt(start) + timeWindow;
+            while (end < historySize && historyAt(end) <= endTimestamp) {
+                end++;
             }
+            highest = Math.max(highest, end - start);
         }
 
         return highest;
@@ -174,24 +562,20 @@ public class TimeDelayQueue {
      * if its time in the TimeDelayQueue exceeds the TransientPubSubMessage's lifetime
      * modifies: this.messages
      */
+    @Override
     public synchronized void removeTransientMsg() {
-        // To work around concurrent modification exception, store objects to remove
-        List<PubSubMessage> toRemove = new ArrayList<>();
-
-        Timestamp currentTimestamp = new Timestamp(System.currentTimeMillis());
-
-        // Get all transient messages outside their lifetime
-        toRemove = messages.stream()
-                .filter(PubSubMessage::isTransient) // equiv to (msg -> msg.isTransient())
-                .filter(msg -> currentTimestamp.getTime() >= msg.getTimestamp().getTime() + (long) ((TransientPubSubMessage) msg).getLifetime())
-                .toList();  // equiv to .collect(toList()) or .collect(Collectors.toList())
-
-        messages.removeAll(toRemove);
-
-        // Alternative
-//        messages = messages.stream()
-//                .filter(msg -> !(msg.isTransient() && currentTimestamp.getTime() >= msg.getTimestamp().getTime() + (long) ((TransientPubSubMessage) msg).getLifetime())) // equiv to (msg -> msg.isTransient())
-//                .collect(Collectors.toList());  // equiv to .collect(toList()) or .collect(Collectors.toList())
-
+        long currentTime = System.currentTimeMillis();
+
+        // Only the transient messages at the head of the expiry heap can be beyond their lifetime
+        QueueEntry head = expiries.peek();
+        while (head != null && currentTime >= head.expiry) {
+            expiries.poll();
+            if (!head.removed) {
+                head.removed = true;
+                index.remove(head.msg.getId());
+                logRemove(head);
+            }
+            head = expiries.peek();
+        }
     }
 }
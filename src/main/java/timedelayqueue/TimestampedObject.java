@@ -34,4 +34,16 @@ public interface TimestampedObject {
      */
     Timestamp getTimestamp();
 
+    /**
+     * Obtain the timestamp associated with this object
+     * as milliseconds since the epoch; implementations that
+     * keep the time as a long should override this so that
+     * it does not allocate
+     *
+     * @return the timestamp associated with this object, in milliseconds
+     */
+    default long getTimestampMillis() {
+        return getTimestamp().getTime();
+    }
+
 }
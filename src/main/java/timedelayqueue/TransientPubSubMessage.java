@@ -42,6 +42,14 @@ public class TransientPubSubMessage extends PubSubMessage {
         this.lifetime = lifetime;
     }
 
+    // create a TransientPubSubMessage instance with explicit args
+    // the receiver set is shared, not copied
+    public TransientPubSubMessage(UUID id, Timestamp timestamp,
+                                  UUID sender, ReceiverSet receiver, String content, MessageType type, int lifetime) {
+        super(id, timestamp, sender, receiver, content, type);
+        this.lifetime = lifetime;
+    }
+
     // create a TransientPubSubMessage instance with implicit args
     // list of receivers
     public TransientPubSubMessage(UUID sender, List<UUID> receiver, String content, int lifetime) {
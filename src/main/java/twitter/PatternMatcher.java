@@ -0,0 +1,217 @@
+package main.java.twitter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+// Description: A PatternMatcher checks whether a text contains any of a fixed set of patterns,
+//              ignoring case. The patterns are compiled into an Aho-Corasick automaton, so a text
+//              is scanned once, one transition per character, however many patterns there are.
+//              Case is ignored one character at a time: patterns and texts are both folded with
+//              Character.toLowerCase(char), which never changes their length, so a pattern always
+//              matches its own text.
+//              Transitions on ASCII characters are precomputed into a table; other characters
+//              follow the trie and its failure links.
+
+// Representation Invariant: State 0 is the root of the trie of the patterns folded by fold().
+//                           For every state s and ASCII character c, ascii[s * ASCII + c] is the state
+//                           reached from s on c, following failure links where the trie has no edge.
+//                           fail[s] is the state of the longest proper suffix of s's string that is
+//                           in the trie, and fail[0] = 0.
+//                           accept[s] is true if and only if some pattern is a suffix of s's string,
+//                           and output[s] holds the indices in patterns of every such pattern.
+
+// Abstraction Function: AF(m) = the set of patterns m.patterns, matched as substrings ignoring case
+
+// Thread safety: A PatternMatcher is immutable once constructed, and matches() only reads it,
+//                so it can be shared between threads; SubscriptionIndex replaces the matcher
+//                rather than changing it when a subscription changes.
+
+public final class PatternMatcher {
+
+    private static final int ASCII = 128;
+    private static final int[] NO_OUTPUT = new int[0];
+
+    private final List<String> patterns;
+    private final int[] ascii;
+    private final List<Map<Character, Integer>> edges;
+    private final int[] fail;
+    private final boolean[] accept;
+    private final int[][] output;
+
+    /**
+     * Compile a set of patterns
+     * @param patterns the patterns, which are matched ignoring case
+     */
+    public PatternMatcher(List<String> patterns) {
+        this.patterns = Collections.unmodifiableList(new ArrayList<>(patterns));
+
+        // build the trie
+        List<Map<Character, Integer>> trie = new ArrayList<>();
+        List<List<Integer>> terminal = new ArrayList<>();
+        trie.add(new HashMap<>());
+        terminal.add(new ArrayList<>());
+        for (int p = 0; p < this.patterns.size(); p++) {
+            String lower = fold(this.patterns.get(p));
+            int state = 0;
+            for (int i = 0; i < lower.length(); i++) {
+                Integer next = trie.get(state).get(lower.charAt(i));
+                if (next == null) {
+                    next = trie.size();
+                    trie.get(state).put(lower.charAt(i), next);
+                    trie.add(new HashMap<>());
+                    terminal.add(new ArrayList<>());
+                }
+                state = next;
+            }
+            terminal.get(state).add(p);
+        }
+
+        int states = trie.size();
+        this.edges = trie;
+        this.fail = new int[states];
+        this.accept = new boolean[states];
+        this.output = new int[states][];
+        this.ascii = new int[states * ASCII];
+        for (int s = 0; s < states; s++) {
+            List<Integer> ends = terminal.get(s);
+            output[s] = ends.isEmpty() ? NO_OUTPUT : ends.stream().mapToInt(Integer::intValue).toArray();
+        }
+        accept[0] = output[0].length > 0;
+
+        // breadth first, so a state's failure link is complete before its children's
+        for (int c = 0; c < ASCII; c++) {
+            Integer child = trie.get(0).get((char) c);
+            ascii[c] = child == null ? 0 : child;
+        }
+        Queue<Integer> queue = new ArrayDeque<>(trie.get(0).values());
+        while (!queue.isEmpty()) {
+            int state = queue.remove();
+            output[state] = concat(output[state], output[fail[state]]);
+            accept[state] = output[state].length > 0;
+            for (Map.Entry<Character, Integer> edge : trie.get(state).entrySet()) {
+                int child = edge.getValue();
+                fail[child] = state == 0 ? 0 : step(fail[state], edge.getKey());
+                queue.add(child);
+            }
+            for (int c = 0; c < ASCII; c++) {
+                Integer child = trie.get(state).get((char) c);
+                ascii[state * ASCII + c] = child != null ? child : ascii[fail[state] * ASCII + c];
+            }
+        }
+    }
+
+    /**
+     * Compile a set of patterns
+     * @param patterns the patterns, which are matched ignoring case
+     */
+    public PatternMatcher(String... patterns) {
+        this(Arrays.asList(patterns));
+    }
+
+    /**
+     * Fold the case of a text the way this matcher does before comparing it with the patterns
+     * @param text the text to fold
+     * @return text with each character replaced by its Character.toLowerCase(char)
+     */
+    public static String fold(CharSequence text) {
+        char[] folded = new char[text.length()];
+        for (int i = 0; i < folded.length; i++) {
+            folded[i] = Character.toLowerCase(text.charAt(i));
+        }
+        return new String(folded);
+    }
+
+    /**
+     * The patterns this matcher was compiled from
+     * @return the patterns, in the order they were given
+     */
+    public List<String> getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * Check whether a text contains any of the patterns, ignoring case
+     * @param text the text to search
+     * @return true if some pattern is a substring of text, ignoring case;
+     *         false if there are no patterns
+     */
+    public boolean matches(CharSequence text) {
+        if (patterns.isEmpty()) {
+            return false;
+        }
+
+        int state = 0;
+        if (accept[state]) {
+            return true;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            state = c < ASCII ? ascii[state * ASCII + c] : step(state, c);
+            if (accept[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find which of the patterns a text contains, ignoring case
+     * @param text the text to search
+     * @return the indices, in getPatterns(), of the patterns that are substrings of text,
+     *         ignoring case; empty if there are no patterns
+     */
+    public BitSet matching(CharSequence text) {
+        BitSet found = new BitSet(patterns.size());
+        if (patterns.isEmpty()) {
+            return found;
+        }
+
+        int state = 0;
+        for (int p : output[state]) {
+            found.set(p);
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            state = c < ASCII ? ascii[state * ASCII + c] : step(state, c);
+            if (accept[state]) {
+                for (int p : output[state]) {
+                    found.set(p);
+                }
+            }
+        }
+        return found;
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        if (b.length == 0) {
+            return a;
+        }
+        int[] both = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        return both;
+    }
+
+    // the state reached from state on c, following failure links where the trie has no edge
+    private int step(int state, char c) {
+        if (c < ASCII) {
+            return ascii[state * ASCII + c];
+        }
+        while (true) {
+            Integer next = edges.get(state).get(c);
+            if (next != null) {
+                return next;
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = fail[state];
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package test.java.phemeservice;
+
+import org.junit.jupiter.api.Test;
+import pheme.PhemeService;
+import timedelayqueue.BasicMessageType;
+import timedelayqueue.PubSubMessage;
+
+import java.io.File;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Task3Concurrent {
+
+    private static final File CREDENTIALS = new File("secret/credentials.json");
+    private static final String PWD = "not-a-real-hash";
+    private static final int NUM_USERS = 64;
+    private static final int NUM_SENDERS = 8;
+    private static final int NUM_READERS = 8;
+    private static final int NUM_MSGS = 2000;
+
+    // Sends NUM_MSGS messages as one user, most to a single receiver and some to several,
+    // recording each receiver's expected messages; a rejected send is counted in failures
+    private class Sender implements Runnable {
+        private final PhemeService srv;
+        private final int from;
+        private final UUID[] ids;
+        private final Map<UUID, Set<UUID>> expected;
+        private final AtomicInteger failures;
+
+        Sender(PhemeService srv, int from, UUID[] ids, Map<UUID, Set<UUID>> expected, AtomicInteger failures) {
+            this.srv      = srv;
+            this.from     = from;
+            this.ids      = ids;
+            this.expected = expected;
+            this.failures = failures;
+        }
+
+        public void run() {
+            Random random = new Random(from);
+            for (int i = 0; i < NUM_MSGS; i++) {
+                List<UUID> receivers = new ArrayList<>();
+                int count = i % 10 == 0 ? 2 + random.nextInt(6) : 1;
+                while (receivers.size() < count) {
+                    UUID receiver = ids[random.nextInt(NUM_USERS)];
+                    if (!receivers.contains(receiver)) {
+                        receivers.add(receiver);
+                    }
+                }
+
+                // old enough that the delay has already elapsed, so readers can take it at once
+                PubSubMessage msg = new PubSubMessage(UUID.randomUUID(),
+                    new Timestamp(System.currentTimeMillis() - PhemeService.DELAY),
+                    ids[from], receivers, "\"msg\"", BasicMessageType.SIMPLEMSG);
+                for (UUID receiver : receivers) {
+                    expected.get(receiver).add(msg.getId());
+                }
+                if (!srv.sendMessage("User " + from, PWD, msg)) {
+                    failures.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    // Reads the inboxes of users [from, to) with getNext() and getAllRecent() until told to stop,
+    // then drains them once more; a message received twice by the same user is counted in failures
+    private class Reader implements Runnable {
+        private final PhemeService srv;
+        private final int from;
+        private final int to;
+        private final UUID[] ids;
+        private final Map<UUID, Set<UUID>> received;
+        private final AtomicInteger failures;
+        private volatile boolean stop = false;
+
+        Reader(PhemeService srv, int from, int to, UUID[] ids,
+               Map<UUID, Set<UUID>> received, AtomicInteger failures) {
+            this.srv      = srv;
+            this.from     = from;
+            this.to       = to;
+            this.ids      = ids;
+            this.received = received;
+            this.failures = failures;
+        }
+
+        public void run() {
+            boolean last = false;
+            for (int round = 0; !last; round++) {
+                last = stop;
+                for (int u = from; u < to; u++) {
+                    List<PubSubMessage> msgs = new ArrayList<>();
+                    if (round % 2 == 0 && !last) {
+                        PubSubMessage msg = srv.getNext("User " + u, PWD);
+                        if (msg != PubSubMessage.NO_MSG) {
+                            msgs.add(msg);
+                        }
+                    } else {
+                        msgs.addAll(srv.getAllRecent("User " + u, PWD));
+                    }
+                    for (PubSubMessage msg : msgs) {
+                        if (!received.get(ids[u]).add(msg.getId())) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentInboxes() throws InterruptedException {
+        PhemeService srv = new PhemeService(CREDENTIALS);
+        UUID[] ids = new UUID[NUM_USERS];
+        Map<UUID, Set<UUID>> expected = new ConcurrentHashMap<>();
+        Map<UUID, Set<UUID>> received = new ConcurrentHashMap<>();
+        for (int u = 0; u < NUM_USERS; u++) {
+            ids[u] = UUID.randomUUID();
+            assertTrue(srv.addUser(ids[u], "User " + u, PWD));
+            expected.put(ids[u], ConcurrentHashMap.newKeySet());
+            received.put(ids[u], new HashSet<>());
+        }
+
+        AtomicInteger failedSends = new AtomicInteger();
+        AtomicInteger duplicates = new AtomicInteger();
+        Reader[] readers = new Reader[NUM_READERS];
+        Thread[] readerThreads = new Thread[NUM_READERS];
+        int perReader = NUM_USERS / NUM_READERS;
+        for (int r = 0; r < NUM_READERS; r++) {
+            readers[r] = new Reader(srv, r * perReader, (r + 1) * perReader, ids, received, duplicates);
+            readerThreads[r] = new Thread(readers[r]);
+            readerThreads[r].start();
+        }
+        Thread[] senderThreads = new Thread[NUM_SENDERS];
+        for (int s = 0; s < NUM_SENDERS; s++) {
+            senderThreads[s] = new Thread(new Sender(srv, s, ids, expected, failedSends));
+            senderThreads[s].start();
+        }
+
+        for (Thread sender : senderThreads) {
+            sender.join();
+        }
+        for (Reader reader : readers) {
+            reader.stop = true;
+        }
+        for (Thread reader : readerThreads) {
+            reader.join();
+        }
+
+        assertEquals(0, failedSends.get());
+        assertEquals(0, duplicates.get());
+        for (UUID id : ids) {
+            assertEquals(expected.get(id), received.get(id));
+            assertFalse(expected.get(id).isEmpty());
+        }
+    }
+
+    @Test
+    public void testFanOutToManyReceivers() throws InterruptedException {
+        final int NUM_RECEIVERS = 3000;
+        PhemeService srv = new PhemeService(CREDENTIALS);
+        UUID sender = UUID.randomUUID();
+        assertTrue(srv.addUser(sender, "Sender", PWD));
+
+        // enough receivers that the message is delivered by several FanOutTasks in parallel;
+        // every third receiver is removed again, and some receivers are listed twice
+        List<UUID> receivers = new ArrayList<>();
+        for (int i = 0; i < NUM_RECEIVERS; i++) {
+            UUID id = UUID.randomUUID();
+            assertTrue(srv.addUser(id, "Receiver " + i, PWD));
+            receivers.add(id);
+            if (i % 5 == 0) {
+                receivers.add(id);
+            }
+        }
+        for (int i = 0; i < NUM_RECEIVERS; i += 3) {
+            assertTrue(srv.removeUser("Receiver " + i, PWD));
+        }
+        receivers.add(UUID.randomUUID());
+
+        PubSubMessage broadcast = new PubSubMessage(UUID.randomUUID(),
+            new Timestamp(System.currentTimeMillis() - PhemeService.DELAY),
+            sender, receivers, "\"broadcast\"", BasicMessageType.SIMPLEMSG);
+        assertTrue(srv.sendMessage("Sender", PWD, broadcast));
+
+        for (int i = 0; i < NUM_RECEIVERS; i++) {
+            List<PubSubMessage> msgs = srv.getAllRecent("Receiver " + i, PWD);
+            if (i % 3 == 0) {
+                assertTrue(msgs.isEmpty());
+            } else {
+                assertEquals(List.of(broadcast), msgs);
+            }
+        }
+        assertEquals(PubSubMessage.NO_MSG, srv.getNext("Sender", PWD));
+    }
+}
@@ -0,0 +1,131 @@
+package test.java.phemeservice;
+
+import org.junit.jupiter.api.Test;
+import pheme.PhemeService;
+import timedelayqueue.BasicMessageType;
+import timedelayqueue.PubSubMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Task3Delivery {
+
+    private static final File CREDENTIALS = new File("secret/credentials.json");
+    private static final String PWD = "not-a-real-hash";
+
+    private final PhemeService srv = new PhemeService(CREDENTIALS);
+    private final UUID sender = UUID.randomUUID();
+    private final UUID alice = UUID.randomUUID();
+    private final UUID bob = UUID.randomUUID();
+
+    // each test runs on a new instance, so starts with a new service holding these three users
+    public Task3Delivery() {
+        assertTrue(srv.addUser(sender, "Sender", PWD));
+        assertTrue(srv.addUser(alice, "Alice", PWD));
+        assertTrue(srv.addUser(bob, "Bob", PWD));
+    }
+
+    // a message old enough that the delay has already elapsed
+    private PubSubMessage send(UUID... receivers) {
+        PubSubMessage msg = new PubSubMessage(UUID.randomUUID(),
+            new Timestamp(System.currentTimeMillis() - PhemeService.DELAY),
+            sender, Arrays.asList(receivers), "\"msg\"", BasicMessageType.SIMPLEMSG);
+        assertTrue(srv.sendMessage("Sender", PWD, msg));
+        return msg;
+    }
+
+    @Test
+    public void testDeliveredByGetNext() {
+        PubSubMessage msg = send(alice, bob);
+        assertFalse(srv.isDelivered(msg.getId(), alice));
+
+        assertEquals(msg, srv.getNext("Alice", PWD));
+        assertTrue(srv.isDelivered(msg.getId(), alice));
+        assertFalse(srv.isDelivered(msg.getId(), bob));
+        assertFalse(srv.isDelivered(msg.getId(), sender));
+        assertEquals(List.of(true, false), srv.isDelivered(msg.getId(), List.of(alice, bob)));
+    }
+
+    @Test
+    public void testDeliveredByGetAllRecent() {
+        PubSubMessage msg1 = send(alice, bob);
+        PubSubMessage msg2 = send(alice);
+
+        assertEquals(List.of(msg1, msg2), srv.getAllRecent("Alice", PWD));
+        assertTrue(srv.isDelivered(msg1.getId(), alice));
+        assertTrue(srv.isDelivered(msg2.getId(), alice));
+        assertEquals(List.of(true, false), srv.isDelivered(msg1.getId(), List.of(alice, bob)));
+
+        // still remembered after every receiver has taken it
+        assertEquals(List.of(msg1), srv.getAllRecent("Bob", PWD));
+        assertEquals(List.of(true, true), srv.isDelivered(msg1.getId(), List.of(alice, bob)));
+    }
+
+    @Test
+    public void testUnknownMessageOrUser() {
+        PubSubMessage msg = send(alice);
+        assertEquals(msg, srv.getNext("Alice", PWD));
+
+        assertFalse(srv.isDelivered(UUID.randomUUID(), alice));
+        assertFalse(srv.isDelivered(msg.getId(), UUID.randomUUID()));
+        assertEquals(List.of(false, false), srv.isDelivered(UUID.randomUUID(), List.of(alice, bob)));
+    }
+
+    @Test
+    public void testUserJoiningAfterDelivery() {
+        PubSubMessage msg = send(alice);
+        assertEquals(msg, srv.getNext("Alice", PWD));
+
+        UUID carol = UUID.randomUUID();
+        assertTrue(srv.addUser(carol, "Carol", PWD));
+        assertFalse(srv.isDelivered(msg.getId(), carol));
+        assertEquals(List.of(true, false), srv.isDelivered(msg.getId(), List.of(alice, carol)));
+
+        // a later message to the same users is tracked for the new one
+        PubSubMessage next = send(alice, carol);
+        assertEquals(next, srv.getNext("Carol", PWD));
+        assertTrue(srv.isDelivered(next.getId(), carol));
+        assertFalse(srv.isDelivered(msg.getId(), carol));
+    }
+
+    @Test
+    public void testReaddedUserStartsUndelivered() {
+        PubSubMessage msg = send(alice, bob);
+        assertEquals(msg, srv.getNext("Alice", PWD));
+        assertTrue(srv.isDelivered(msg.getId(), alice));
+
+        assertTrue(srv.removeUser("Alice", PWD));
+        assertFalse(srv.isDelivered(msg.getId(), alice));
+
+        assertTrue(srv.addUser(alice, "Alice", PWD));
+        assertFalse(srv.isDelivered(msg.getId(), alice));
+        assertEquals(List.of(false, false), srv.isDelivered(msg.getId(), List.of(alice, bob)));
+
+        // deliveries to users that stayed are unaffected
+        assertEquals(msg, srv.getNext("Bob", PWD));
+        assertTrue(srv.isDelivered(msg.getId(), bob));
+    }
+
+    @Test
+    public void testRestoredMessage() throws IOException {
+        PubSubMessage msg = send(alice, bob);
+        File dir = Files.createTempDirectory("pheme-state").toFile();
+        srv.saveState(dir.getPath());
+        srv.awaitStateSaved();
+
+        // the restored message is still waiting for Bob after Alice has taken it
+        PhemeService loaded = PhemeService.loadState(CREDENTIALS, dir.getPath());
+        assertEquals(msg, loaded.getNext("Alice", PWD));
+        assertEquals(List.of(true, false), loaded.isDelivered(msg.getId(), List.of(alice, bob)));
+        assertEquals(msg, loaded.getNext("Bob", PWD));
+        assertEquals(List.of(true, true), loaded.isDelivered(msg.getId(), List.of(alice, bob)));
+        assertFalse(loaded.isDelivered(msg.getId(), sender));
+    }
+}
@@ -0,0 +1,156 @@
+package test.java.phemeservice;
+
+import org.junit.jupiter.api.Test;
+import pheme.PhemeService;
+import timedelayqueue.PubSubMessage;
+
+import java.io.File;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Task3Routing {
+
+    private static final File CREDENTIALS = new File("secret/credentials.json");
+    private static final String PWD = "not-a-real-hash";
+    // old enough that the delay has always elapsed
+    private static final Timestamp CREATED = new Timestamp(0);
+
+    private static PhemeService serviceWithUsers(String... userNames) {
+        PhemeService srv = new PhemeService(CREDENTIALS);
+        for (String userName : userNames) {
+            assertTrue(srv.addUser(UUID.randomUUID(), userName, PWD));
+        }
+        return srv;
+    }
+
+    @Test
+    public void testRouteToAuthorSubscribers() {
+        PhemeService srv = serviceWithUsers("User 1", "User 2", "User 3");
+        assertTrue(srv.addSubscription("User 1", PWD, "UBC"));
+        assertTrue(srv.addSubscription("User 2", PWD, "ubc"));
+        assertFalse(srv.addSubscription("User 2", PWD, "Ubc"));
+        assertTrue(srv.addSubscription("User 3", PWD, "SFU"));
+
+        assertEquals(2, srv.deliverTweet("ubc", CREATED, "Hello", "{\"text\":\"Hello\"}"));
+        List<PubSubMessage> msgs1 = srv.getAllRecent("User 1", PWD);
+        List<PubSubMessage> msgs2 = srv.getAllRecent("User 2", PWD);
+        assertEquals(1, msgs1.size());
+        assertEquals(msgs1, msgs2);
+        assertEquals("{\"text\":\"Hello\"}", msgs1.get(0).getContent());
+        assertTrue(srv.getAllRecent("User 3", PWD).isEmpty());
+    }
+
+    @Test
+    public void testRouteWithPatterns() {
+        PhemeService srv = serviceWithUsers("User 1", "User 2");
+        assertTrue(srv.addSubscription("User 1", PWD, "ubcengineering", "Ceremonies"));
+        assertFalse(srv.addSubscription("User 1", PWD, "ubcengineering", "ceremonies"));
+        assertTrue(srv.addSubscription("User 2", PWD, "ubcengineering", "robots"));
+
+        assertEquals(1, srv.deliverTweet("ubcengineering", CREATED, "Grad CEREMONIES today", "a"));
+        assertEquals(0, srv.deliverTweet("ubcengineering", CREATED, "Nothing to see", "b"));
+        assertEquals(2, srv.deliverTweet("UBCEngineering", CREATED, "Robots at the ceremonies", "c"));
+        assertEquals(2, srv.getAllRecent("User 1", PWD).size());
+        assertEquals(1, srv.getAllRecent("User 2", PWD).size());
+    }
+
+    @Test
+    public void testRouteWithNonAsciiPatterns() {
+        PhemeService srv = serviceWithUsers("User 1");
+        assertTrue(srv.addSubscription("User 1", PWD, "travel", "\u0130stanbul"));
+        assertTrue(srv.addSubscription("User 1", PWD, "travel", "Caf\u00e9"));
+        assertFalse(srv.addSubscription("User 1", PWD, "travel", "CAF\u00c9"));
+
+        assertEquals(1, srv.deliverTweet("travel", CREATED, "Flights to \u0130STANBUL", "a"));
+        assertEquals(1, srv.deliverTweet("travel", CREATED, "Best caf\u00c9 in town", "b"));
+        assertEquals(0, srv.deliverTweet("travel", CREATED, "Flights to Ankara", "c"));
+
+        // the remaining patterns still match once one is cancelled
+        assertTrue(srv.cancelSubscription("User 1", PWD, "travel", "caf\u00e9"));
+        assertEquals(0, srv.deliverTweet("travel", CREATED, "Best caf\u00e9 in town", "d"));
+        assertEquals(1, srv.deliverTweet("travel", CREATED, "\u0130stanbul again", "e"));
+        assertEquals(3, srv.getAllRecent("User 1", PWD).size());
+    }
+
+    @Test
+    public void testManySubscribersWithOverlappingPatterns() {
+        // patterns that are substrings of one another, shared by many subscribers
+        String[] pool = {"he", "she", "his", "hers", "ushers", "#UBC", "ubc", "Caf\u00e9"};
+        String[] tweets = {"The USHERS", "his caf\u00c9", "#ubc day", "nothing to see", "She said"};
+        PhemeService srv = new PhemeService(CREDENTIALS);
+        Random random = new Random(25);
+        int users = 300;
+
+        // null for a subscriber to every tweet, otherwise the patterns subscribed to
+        List<List<String>> patternsOf = new ArrayList<>();
+        for (int u = 0; u < users; u++) {
+            String name = "User " + u;
+            assertTrue(srv.addUser(UUID.randomUUID(), name, PWD));
+            List<String> patterns = new ArrayList<>();
+            for (int k = random.nextInt(5); k > 0; k--) {
+                String pattern = pool[random.nextInt(pool.length)];
+                if (srv.addSubscription(name, PWD, "news", pattern)) {
+                    patterns.add(pattern);
+                }
+            }
+            if (u % 10 == 0) {
+                assertTrue(srv.addSubscription(name, PWD, "News"));
+                patterns = null;
+            }
+            patternsOf.add(patterns);
+        }
+
+        int[] expected = new int[users];
+        for (String tweet : tweets) {
+            int receivers = 0;
+            for (int u = 0; u < users; u++) {
+                boolean wanted = patternsOf.get(u) == null;
+                for (String pattern : wanted ? List.<String>of() : patternsOf.get(u)) {
+                    wanted |= tweet.toLowerCase(Locale.ROOT).contains(pattern.toLowerCase(Locale.ROOT));
+                }
+                if (wanted) {
+                    receivers++;
+                    expected[u]++;
+                }
+            }
+            assertEquals(receivers, srv.deliverTweet("NEWS", CREATED, tweet, tweet), tweet);
+        }
+
+        // each subscriber received each wanted tweet exactly once
+        for (int u = 0; u < users; u++) {
+            assertEquals(expected[u], srv.getAllRecent("User " + u, PWD).size(), "User " + u);
+        }
+    }
+
+    @Test
+    public void testCancelSubscription() {
+        PhemeService srv = serviceWithUsers("User 1");
+        assertFalse(srv.cancelSubscription("User 1", PWD, "UBC"));
+        assertTrue(srv.addSubscription("User 1", PWD, "UBC"));
+        assertTrue(srv.addSubscription("User 1", PWD, "UBC", "exams"));
+
+        // cancelling the pattern keeps the subscription to every tweet
+        assertTrue(srv.cancelSubscription("User 1", PWD, "UBC", "exams"));
+        assertFalse(srv.cancelSubscription("User 1", PWD, "UBC", "exams"));
+        assertEquals(1, srv.deliverTweet("UBC", CREATED, "Anything", "a"));
+
+        assertTrue(srv.cancelSubscription("User 1", PWD, "ubc"));
+        assertEquals(0, srv.deliverTweet("UBC", CREATED, "Anything", "b"));
+        assertFalse(srv.cancelSubscription("User 1", "wrong", "UBC"));
+    }
+
+    @Test
+    public void testRemovedUserIsUnsubscribed() {
+        PhemeService srv = serviceWithUsers("User 1");
+        assertTrue(srv.addSubscription("User 1", PWD, "UBC"));
+        assertFalse(srv.addSubscription("User 1", "wrong", "SFU"));
+        assertTrue(srv.removeUser("User 1", PWD));
+        assertEquals(0, srv.deliverTweet("UBC", CREATED, "Anything", "a"));
+    }
+}
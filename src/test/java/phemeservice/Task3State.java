@@ -0,0 +1,273 @@
+package test.java.phemeservice;
+
+import org.junit.jupiter.api.Test;
+import pheme.PhemeService;
+import timedelayqueue.PubSubMessage;
+import timedelayqueue.TransientPubSubMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Task3State {
+
+    private static final File CREDENTIALS = new File("secret/credentials.json");
+    private static final String PWD = "not-a-real-hash";
+
+    private static String[] snapshotFiles(File dir, String prefix) {
+        return dir.list((d, name) -> name.startsWith(prefix) && name.endsWith(".snap"));
+    }
+
+    private static void waitForDelay() throws InterruptedException {
+        Thread.sleep(PhemeService.DELAY + 100);
+    }
+
+    // A message whose content the snapshot writer cannot read until it is released,
+    // so a save holding it keeps the writer busy until then
+    private static class HeldMessage extends PubSubMessage {
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        HeldMessage(UUID sender, UUID receiver, String content) {
+            super(sender, receiver, content);
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        @Override
+        public String getContent() {
+            if (Thread.currentThread().getName().equals("pheme-snapshot-writer")) {
+                try {
+                    released.await();
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.getContent();
+        }
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("pheme-state").toFile();
+        PhemeService srv = new PhemeService(CREDENTIALS);
+        UUID id1 = UUID.randomUUID();
+        UUID id2 = UUID.randomUUID();
+        UUID id3 = UUID.randomUUID();
+        assertTrue(srv.addUser(id1, "User 1", PWD));
+        assertTrue(srv.addUser(id2, "User 2", PWD));
+        assertTrue(srv.addUser(id3, "User 3", PWD));
+
+        PubSubMessage broadcast = new PubSubMessage(id1, Arrays.asList(id2, id3), "Broadcast");
+        PubSubMessage transientMsg = new TransientPubSubMessage(id1, id2, "Transient", 60000);
+        assertTrue(srv.sendMessage("User 1", PWD, broadcast));
+        assertTrue(srv.sendMessage("User 1", PWD, transientMsg));
+
+        srv.saveState(dir.getPath());
+        srv.awaitStateSaved();
+        assertEquals(1, snapshotFiles(dir, "base-").length);
+
+        PhemeService loaded = PhemeService.loadState(CREDENTIALS, dir.getPath());
+        assertTrue(loaded.isUser("User 1"));
+        assertTrue(loaded.isUser("User 2"));
+        assertTrue(loaded.isUser("User 3"));
+        assertFalse(loaded.addUser(id1, "User 4", PWD));
+
+        waitForDelay();
+        List<PubSubMessage> recent = loaded.getAllRecent("User 2", PWD);
+        assertEquals(2, recent.size());
+        assertEquals(broadcast, recent.get(0));
+        assertEquals(broadcast.getReceiver(), recent.get(0).getReceiver());
+        assertEquals(transientMsg, recent.get(1));
+        assertTrue(recent.get(1).isTransient());
+        assertEquals(broadcast, loaded.getNext("User 3", PWD));
+        assertEquals(PubSubMessage.NO_MSG, loaded.getNext("User 1", PWD));
+    }
+
+    @Test
+    public void testIncrementalSave() throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("pheme-state").toFile();
+        PhemeService srv = new PhemeService(CREDENTIALS);
+        UUID[] ids = new UUID[8];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = UUID.randomUUID();
+            assertTrue(srv.addUser(ids[i], "User " + i, PWD));
+        }
+        PubSubMessage msg1 = new PubSubMessage(ids[0], ids[1], "Msg 1");
+        PubSubMessage msg2 = new PubSubMessage(ids[0], ids[2], "Msg 2");
+        assertTrue(srv.sendMessage("User 0", PWD, msg1));
+        assertTrue(srv.sendMessage("User 0", PWD, msg2));
+        srv.saveState(dir.getPath());
+
+        // only a few users change before the next save, so it is written as a delta
+        waitForDelay();
+        assertEquals(msg1, srv.getNext("User 1", PWD));
+        assertTrue(srv.removeUser("User 3", PWD));
+        UUID newID = UUID.randomUUID();
+        assertTrue(srv.addUser(newID, "New User", PWD));
+        PubSubMessage msg3 = new PubSubMessage(ids[0], newID, "Msg 3");
+        assertTrue(srv.sendMessage("User 0", PWD, msg3));
+        srv.saveState(dir.getPath());
+        srv.awaitStateSaved();
+        assertEquals(1, snapshotFiles(dir, "base-").length);
+        assertEquals(1, snapshotFiles(dir, "delta-").length);
+
+        PhemeService loaded = PhemeService.loadState(CREDENTIALS, dir.getPath());
+        assertFalse(loaded.isUser("User 3"));
+        assertTrue(loaded.isUser("New User"));
+        assertTrue(loaded.isUser("User 7"));
+        waitForDelay();
+        assertEquals(PubSubMessage.NO_MSG, loaded.getNext("User 1", PWD));
+        assertEquals(msg2, loaded.getNext("User 2", PWD));
+        assertEquals(msg3, loaded.getNext("New User", PWD));
+
+        // the loaded service continues the chain with a delta of its own
+        loaded.saveState(dir.getPath());
+        loaded.awaitStateSaved();
+        assertEquals(1, snapshotFiles(dir, "base-").length);
+        assertEquals(2, snapshotFiles(dir, "delta-").length);
+        PhemeService reloaded = PhemeService.loadState(CREDENTIALS, dir.getPath());
+        waitForDelay();
+        assertEquals(PubSubMessage.NO_MSG, reloaded.getNext("User 2", PWD));
+        assertEquals(PubSubMessage.NO_MSG, reloaded.getNext("New User", PWD));
+    }
+
+    @Test
+    public void testNewBaseReplacesDeltas() throws IOException {
+        File dir = Files.createTempDirectory("pheme-state").toFile();
+        PhemeService srv = new PhemeService(CREDENTIALS);
+        UUID sender = UUID.randomUUID();
+        UUID receiver = UUID.randomUUID();
+        assertTrue(srv.addUser(sender, "Sender", PWD));
+        assertTrue(srv.addUser(receiver, "Receiver", PWD));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(srv.addUser(UUID.randomUUID(), "Bystander " + i, PWD));
+        }
+
+        srv.saveState(dir.getPath());
+        for (int i = 0; i < 40; i++) {
+            assertTrue(srv.sendMessage("Sender", PWD, new PubSubMessage(sender, receiver, "Msg " + i)));
+            srv.saveState(dir.getPath());
+        }
+        srv.awaitStateSaved();
+
+        assertEquals(1, snapshotFiles(dir, "base-").length);
+        assertTrue(snapshotFiles(dir, "delta-").length < 40);
+        assertTrue(PhemeService.loadState(CREDENTIALS, dir.getPath()).isUser("Bystander 3"));
+    }
+
+    @Test
+    public void testFailedDeltaIsNotFollowedByDeltas() throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("pheme-state").toFile();
+        PhemeService srv = new PhemeService(CREDENTIALS);
+        UUID[] ids = new UUID[8];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = UUID.randomUUID();
+            assertTrue(srv.addUser(ids[i], "User " + i, PWD));
+        }
+        srv.saveState(dir.getPath());
+        HeldMessage msg1 = new HeldMessage(ids[0], ids[1], "Msg 1");
+        assertTrue(srv.sendMessage("User 0", PWD, msg1));
+        srv.saveState(dir.getPath());
+
+        // delta 2 cannot create its temporary file, so its write fails; delta 3 is captured
+        // while the writer is held in delta 1, before delta 2 has failed, so it is queued as a delta
+        File blocker = new File(dir, String.format("delta-%020d.snap.tmp", 2));
+        assertTrue(blocker.mkdir());
+        PubSubMessage msg2 = new PubSubMessage(ids[0], ids[2], "Msg 2");
+        PubSubMessage msg3 = new PubSubMessage(ids[0], ids[1], "Msg 3");
+        try {
+            assertTrue(srv.sendMessage("User 0", PWD, msg2));
+            srv.saveState(dir.getPath());
+            assertTrue(srv.sendMessage("User 0", PWD, msg3));
+            srv.saveState(dir.getPath());
+        }
+        finally {
+            msg1.release();
+        }
+        assertThrows(IOException.class, srv::awaitStateSaved);
+        assertEquals(1, snapshotFiles(dir, "base-").length);
+        assertEquals(1, snapshotFiles(dir, "delta-").length);
+
+        // the saved state is the one before the failure, not msg3 without msg2
+        PhemeService loaded = PhemeService.loadState(CREDENTIALS, dir.getPath());
+        waitForDelay();
+        assertEquals(List.of(msg1), loaded.getAllRecent("User 1", PWD));
+        assertEquals(List.of(), loaded.getAllRecent("User 2", PWD));
+
+        // the next save is a base, which holds every change
+        assertTrue(blocker.delete());
+        srv.saveState(dir.getPath());
+        srv.awaitStateSaved();
+        assertEquals(1, snapshotFiles(dir, "base-").length);
+        assertEquals(0, snapshotFiles(dir, "delta-").length);
+        PhemeService reloaded = PhemeService.loadState(CREDENTIALS, dir.getPath());
+        waitForDelay();
+        assertEquals(List.of(msg1, msg3), reloaded.getAllRecent("User 1", PWD));
+        assertEquals(List.of(msg2), reloaded.getAllRecent("User 2", PWD));
+    }
+
+    @Test
+    public void testLoadRejectsMissingDelta() throws IOException {
+        File dir = Files.createTempDirectory("pheme-state").toFile();
+        PhemeService srv = new PhemeService(CREDENTIALS);
+        UUID[] ids = new UUID[8];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = UUID.randomUUID();
+            assertTrue(srv.addUser(ids[i], "User " + i, PWD));
+        }
+        srv.saveState(dir.getPath());
+        for (int i = 1; i <= 2; i++) {
+            assertTrue(srv.sendMessage("User 0", PWD, new PubSubMessage(ids[0], ids[i], "Msg " + i)));
+            srv.saveState(dir.getPath());
+        }
+        srv.awaitStateSaved();
+        assertEquals(2, snapshotFiles(dir, "delta-").length);
+
+        assertTrue(new File(dir, String.format("delta-%020d.snap", 1)).delete());
+        assertThrows(UncheckedIOException.class, () -> PhemeService.loadState(CREDENTIALS, dir.getPath()));
+    }
+
+    @Test
+    public void testSaveRestoredInboxes() throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("pheme-state").toFile();
+        File copy = Files.createTempDirectory("pheme-state").toFile();
+        PhemeService srv = new PhemeService(CREDENTIALS);
+        UUID id1 = UUID.randomUUID();
+        UUID id2 = UUID.randomUUID();
+        assertTrue(srv.addUser(id1, "User 1", PWD));
+        assertTrue(srv.addUser(id2, "User 2", PWD));
+        PubSubMessage msg = new PubSubMessage(id1, id2, "Msg");
+        assertTrue(srv.sendMessage("User 1", PWD, msg));
+        srv.saveState(dir.getPath());
+        srv.awaitStateSaved();
+
+        // the inboxes of the loaded service are saved to a new directory before they are ever used
+        PhemeService loaded = PhemeService.loadState(CREDENTIALS, dir.getPath());
+        loaded.saveState(copy.getPath());
+        loaded.awaitStateSaved();
+        assertEquals(1, snapshotFiles(copy, "base-").length);
+
+        PhemeService reloaded = PhemeService.loadState(CREDENTIALS, copy.getPath());
+        waitForDelay();
+        assertEquals(msg, reloaded.getNext("User 2", PWD));
+        assertEquals(msg, loaded.getNext("User 2", PWD));
+        assertEquals(PubSubMessage.NO_MSG, loaded.getNext("User 2", PWD));
+    }
+
+    @Test
+    public void testLoadEmptyDirectory() throws IOException {
+        File dir = Files.createTempDirectory("pheme-state").toFile();
+        PhemeService loaded = PhemeService.loadState(CREDENTIALS, dir.getPath());
+        assertFalse(loaded.isUser("User 1"));
+    }
+}
@@ -0,0 +1,159 @@
+package test.java.phemeservice;
+
+import org.junit.jupiter.api.Test;
+import pheme.PhemeService;
+import timedelayqueue.PubSubMessage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Task3Users {
+
+    private static final File CREDENTIALS = new File("secret/credentials.json");
+    private static final String PWD = "not-a-real-hash";
+    private static final String OTHER_PWD = "another-hash";
+
+    // sendMessage() only succeeds if userName and hashPassword authenticate userID
+    private static boolean authenticates(PhemeService srv, UUID userID, String userName, String hashPassword) {
+        return srv.sendMessage(userName, hashPassword, new PubSubMessage(userID, userID, "to myself"));
+    }
+
+    @Test
+    public void testRepeatAuthentication() {
+        PhemeService srv = new PhemeService(CREDENTIALS);
+        UUID id = UUID.randomUUID();
+        assertTrue(srv.addUser(id, "Alice", PWD));
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(authenticates(srv, id, "Alice", PWD));
+        }
+        assertFalse(authenticates(srv, id, "Alice", OTHER_PWD));
+        assertFalse(authenticates(srv, id, "alice", PWD));
+        assertTrue(authenticates(srv, id, "Alice", PWD));
+    }
+
+    @Test
+    public void testRemovedUserCannotAuthenticate() {
+        PhemeService srv = new PhemeService(CREDENTIALS);
+        UUID id = UUID.randomUUID();
+        assertTrue(srv.addUser(id, "Alice", PWD));
+        assertTrue(authenticates(srv, id, "Alice", PWD));
+
+        assertFalse(srv.removeUser("Alice", OTHER_PWD));
+        assertTrue(authenticates(srv, id, "Alice", PWD));
+
+        assertTrue(srv.removeUser("Alice", PWD));
+        assertFalse(authenticates(srv, id, "Alice", PWD));
+        assertEquals(PubSubMessage.NO_MSG, srv.getNext("Alice", PWD));
+        assertEquals(List.of(), srv.getAllRecent("Alice", PWD));
+        assertFalse(srv.removeUser("Alice", PWD));
+    }
+
+    @Test
+    public void testReaddedUserNewPassword() {
+        PhemeService srv = new PhemeService(CREDENTIALS);
+        UUID id = UUID.randomUUID();
+        assertTrue(srv.addUser(id, "Alice", PWD));
+        assertTrue(authenticates(srv, id, "Alice", PWD));
+        assertTrue(srv.removeUser("Alice", PWD));
+
+        assertTrue(srv.addUser(id, "Alice", OTHER_PWD));
+        assertFalse(authenticates(srv, id, "Alice", PWD));
+        assertTrue(authenticates(srv, id, "Alice", OTHER_PWD));
+    }
+
+    @Test
+    public void testIndexesAfterRemoveUser() {
+        PhemeService srv = new PhemeService(CREDENTIALS);
+        UUID alice = UUID.randomUUID();
+        UUID bob = UUID.randomUUID();
+        assertTrue(srv.addUser(alice, "Alice", PWD));
+        assertTrue(srv.addUser(bob, "Bob", PWD));
+
+        // a name or an id already taken is rejected, and leaves both indexes unchanged
+        assertFalse(srv.addUser(UUID.randomUUID(), "Alice", PWD));
+        assertFalse(srv.addUser(alice, "Carol", PWD));
+        assertFalse(srv.isUser("Carol"));
+        assertTrue(authenticates(srv, alice, "Alice", PWD));
+
+        assertTrue(srv.removeUser("Alice", PWD));
+        assertFalse(srv.isUser("Alice"));
+        assertTrue(srv.isUser("Bob"));
+        assertTrue(authenticates(srv, bob, "Bob", PWD));
+
+        // both the name and the id are free again
+        assertTrue(srv.addUser(alice, "Carol", PWD));
+        assertTrue(srv.isUser("Carol"));
+        assertTrue(authenticates(srv, alice, "Carol", PWD));
+        assertTrue(srv.addUser(UUID.randomUUID(), "Alice", PWD));
+        assertTrue(srv.isUser("Alice"));
+    }
+
+    @Test
+    public void testReaddSameNameNewID() throws InterruptedException {
+        PhemeService srv = new PhemeService(CREDENTIALS);
+        UUID oldID = UUID.randomUUID();
+        UUID newID = UUID.randomUUID();
+        UUID bob = UUID.randomUUID();
+        assertTrue(srv.addUser(oldID, "Alice", PWD));
+        assertTrue(srv.addUser(bob, "Bob", PWD));
+        assertTrue(srv.sendMessage("Bob", PWD, new PubSubMessage(bob, oldID, "to old Alice")));
+        assertTrue(srv.removeUser("Alice", PWD));
+
+        assertTrue(srv.addUser(newID, "Alice", PWD));
+        assertTrue(srv.isUser("Alice"));
+        assertFalse(authenticates(srv, oldID, "Alice", PWD));
+        assertFalse(srv.addUser(oldID, "Alice", PWD));
+
+        // the name now resolves to the new id, whose inbox holds nothing sent to the old one
+        PubSubMessage msg = new PubSubMessage(bob, newID, "to new Alice");
+        assertTrue(srv.sendMessage("Bob", PWD, msg));
+        assertTrue(srv.sendMessage("Bob", PWD, new PubSubMessage(bob, oldID, "to nobody")));
+        Thread.sleep(PhemeService.DELAY + 100);
+        assertEquals(List.of(msg), srv.getAllRecent("Alice", PWD));
+    }
+
+    @Test
+    public void testConcurrentAddSameName() throws InterruptedException {
+        int threads = 8;
+        int rounds = 200;
+        for (int round = 0; round < rounds; round++) {
+            PhemeService srv = new PhemeService(CREDENTIALS);
+            UUID[] ids = new UUID[threads];
+            AtomicInteger added = new AtomicInteger();
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                UUID id = UUID.randomUUID();
+                ids[t] = id;
+                workers.add(new Thread(() -> {
+                    if (srv.addUser(id, "Alice", PWD)) {
+                        added.incrementAndGet();
+                    }
+                }));
+            }
+            for (Thread worker : workers) {
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+
+            // exactly one id won the name, and only that id is registered
+            assertEquals(1, added.get());
+            int registered = 0;
+            for (UUID id : ids) {
+                if (authenticates(srv, id, "Alice", PWD)) {
+                    registered++;
+                } else {
+                    assertTrue(srv.addUser(id, "Other " + id, PWD));
+                }
+            }
+            assertEquals(1, registered);
+        }
+    }
+}
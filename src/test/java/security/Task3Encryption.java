@@ -0,0 +1,93 @@
+package test.java.security;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.ShortBufferException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Task3Encryption {
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testStringRoundTrip() {
+        AESCipher aes = new AESCipher("Test Key 1");
+        String cipherText = aes.encrypt("Hello, Pheme!");
+        assertNotEquals("Hello, Pheme!", cipherText);
+        assertEquals(cipherText, aes.encrypt("Hello, Pheme!"));
+        assertEquals("Hello, Pheme!", aes.decrypt(cipherText));
+        assertNotEquals(cipherText, new AESCipher("Test Key 2").encrypt("Hello, Pheme!"));
+    }
+
+    @Test
+    public void testByteBufferRoundTrip() throws ShortBufferException {
+        AESCipher aes = new AESCipher("Test Key 1");
+        for (int length : new int[]{0, 1, 15, 16, 17, 1000}) {
+            for (boolean direct : new boolean[]{false, true}) {
+                byte[] plain = randomBytes(length);
+                int size = AESCipher.encryptedSize(length);
+                ByteBuffer cipherText = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+                assertEquals(size, aes.encrypt(ByteBuffer.wrap(plain), cipherText));
+                assertEquals(0, cipherText.remaining());
+                cipherText.flip();
+
+                ByteBuffer decrypted = ByteBuffer.allocate(size);
+                assertEquals(length, aes.decrypt(cipherText, decrypted));
+                byte[] result = new byte[length];
+                decrypted.flip().get(result);
+                assertArrayEquals(plain, result);
+            }
+        }
+    }
+
+    @Test
+    public void testByteBufferShortAndMalformed() throws ShortBufferException {
+        AESCipher aes = new AESCipher("Test Key 1");
+        ByteBuffer src = ByteBuffer.wrap(randomBytes(20));
+        assertThrows(ShortBufferException.class, () -> aes.encrypt(src, ByteBuffer.allocate(16)));
+        assertEquals(20, src.remaining());
+
+        // the cipher is still usable after the failure
+        ByteBuffer cipherText = ByteBuffer.allocate(AESCipher.encryptedSize(20));
+        aes.encrypt(src, cipherText);
+        cipherText.flip();
+        ByteBuffer truncated = cipherText.duplicate().limit(cipherText.limit() - 1);
+        assertThrows(IllegalArgumentException.class, () -> aes.decrypt(truncated, ByteBuffer.allocate(64)));
+        assertEquals(20, aes.decrypt(cipherText, ByteBuffer.allocate(64)));
+    }
+
+    @Test
+    public void testStreamRoundTrip() throws IOException, ShortBufferException {
+        AESCipher aes = new AESCipher("Test Key 1");
+        byte[] plain = randomBytes(1 << 20);
+
+        ByteArrayOutputStream cipherText = new ByteArrayOutputStream();
+        try (OutputStream out = aes.encryptingStream(cipherText)) {
+            for (int off = 0; off < plain.length; off += 4096) {
+                out.write(plain, off, Math.min(4096, plain.length - off));
+            }
+        }
+        assertEquals(AESCipher.encryptedSize(plain.length), cipherText.size());
+
+        // streamed and buffer ciphertexts are interchangeable
+        ByteBuffer decrypted = ByteBuffer.allocate(cipherText.size());
+        aes.decrypt(ByteBuffer.wrap(cipherText.toByteArray()), decrypted);
+        assertEquals(plain.length, decrypted.position());
+
+        try (InputStream in = aes.decryptingStream(new ByteArrayInputStream(cipherText.toByteArray()))) {
+            assertArrayEquals(plain, in.readAllBytes());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package test.java.security;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Task3Hashing {
+
+    // {password, salt, expected hash}, from the jBCrypt test suite
+    private static final String[][] VECTORS = {
+        {"", "$2a$06$DCq7YPn5Rq63x1Lad4cll.",
+            "$2a$06$DCq7YPn5Rq63x1Lad4cll.TV4S6ytwfsfvkgY8jIucDrjc8deX1s."},
+        {"a", "$2a$06$m0CrhHm10qJ3lXRY.5zDGO",
+            "$2a$06$m0CrhHm10qJ3lXRY.5zDGO3rS2KdeeWLuGmsfGlMfOxih58VYVfxe"},
+        {"abc", "$2a$06$If6bvum7DFjUnE9p2uDeDu",
+            "$2a$06$If6bvum7DFjUnE9p2uDeDu0YHzrHM6tf.iqN8.yx.jNN1ILEf7h0i"},
+        {"abc", "$2a$08$Ro0CUfOqk6cXEKf3dyaM7O",
+            "$2a$08$Ro0CUfOqk6cXEKf3dyaM7OhSCvnwM9s4wIX9JeLapehKK5YdLxKcm"},
+        {"abcdefghijklmnopqrstuvwxyz", "$2a$06$.rCVZVOThsIa97pEDOxvGu",
+            "$2a$06$.rCVZVOThsIa97pEDOxvGuRRgzG64bvtJ0938xuqzv18d3ZpQhstC"},
+        {"~!@#$%^&*()      ~!@#$%^&*()PNBFRD", "$2a$06$fPIsBO8qRqkjj273rfaOI.",
+            "$2a$06$fPIsBO8qRqkjj273rfaOI.HtSV9jLDpTbZn782DC6/t7qT67P6FfO"},
+    };
+
+    @Test
+    public void testHashPasswordVectors() {
+        // hash every vector twice on this thread, so the second pass runs on a reused key schedule
+        for (int pass = 0; pass < 2; pass++) {
+            for (String[] v : VECTORS) {
+                assertEquals(v[2], BlowfishCipher.hashPassword(v[0], v[1]));
+            }
+        }
+    }
+
+    @Test
+    public void testVerifyPassword() {
+        for (String[] v : VECTORS) {
+            assertTrue(BlowfishCipher.verifyPassword(v[0], v[2]));
+            assertFalse(BlowfishCipher.verifyPassword(v[0] + "x", v[2]));
+        }
+    }
+
+    @Test
+    public void testHashPasswordConcurrent() throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (String[] v : VECTORS) {
+                    if (!v[2].equals(BlowfishCipher.hashPassword(v[0], v[1]))) {
+                        synchronized (failures) {
+                            failures.add(new AssertionError("wrong hash for \"" + v[0] + "\""));
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(failures.isEmpty(), failures.toString());
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        List<CompletableFuture<String>> hashes = new ArrayList<>();
+        for (String[] v : VECTORS) {
+            hashes.add(BlowfishCipher.hashPasswordAsync(v[0], v[1]));
+        }
+        for (int i = 0; i < VECTORS.length; i++) {
+            assertEquals(VECTORS[i][2], hashes.get(i).get());
+        }
+        assertTrue(BlowfishCipher.verifyPasswordAsync(VECTORS[0][0], VECTORS[0][2]).get());
+        assertFalse(BlowfishCipher.verifyPasswordAsync("wrong", VECTORS[0][2]).get());
+    }
+}
@@ -4,8 +4,14 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -433,4 +439,205 @@ public class Task1 {
 
 
 
+    @Test
+    public void testTake_WaitsForDelay() {
+        TimeDelayQueue tdq = new TimeDelayQueue(DELAY);
+        UUID sndID     = UUID.randomUUID();
+        UUID rcvID     = UUID.randomUUID();
+        String msgText = gson.toJson("test");
+        PubSubMessage msg1 = new PubSubMessage(sndID, rcvID, msgText);
+        tdq.add(msg1);
+        try {
+            // take() should park until the delay has elapsed, rather than returning NO_MSG
+            assertEquals(msg1, tdq.take());
+        }
+        catch (InterruptedException ie) {
+            fail();
+        }
+        assertTrue(System.currentTimeMillis() - msg1.getTimestamp().getTime() >= DELAY);
+    }
+
+    @Test
+    public void testPoll_TimeoutAndWakeOnAdd() {
+        TimeDelayQueue tdq = new TimeDelayQueue(DELAY);
+        UUID sndID     = UUID.randomUUID();
+        UUID rcvID     = UUID.randomUUID();
+        String msgText = gson.toJson("test");
+        try {
+            // Nothing in the queue, so poll() gives up after the timeout
+            assertEquals(PubSubMessage.NO_MSG, tdq.poll(DELAY / 4, TimeUnit.MILLISECONDS));
+
+            // A message added while a consumer is parked is handed out once its delay elapses
+            PubSubMessage msg1 = new PubSubMessage(sndID, rcvID, msgText);
+            Thread writer = new Thread(() -> tdq.add(msg1));
+            writer.start();
+            assertEquals(msg1, tdq.poll(10 * DELAY, TimeUnit.MILLISECONDS));
+            writer.join();
+        }
+        catch (InterruptedException ie) {
+            fail();
+        }
+    }
+
+    @Test
+    public void testAddAllAndDrainTo() {
+        TimeDelayQueue tdq = new TimeDelayQueue(DELAY);
+        UUID sndID     = UUID.randomUUID();
+        UUID rcvID     = UUID.randomUUID();
+        String msgText = gson.toJson("test");
+        long now       = System.currentTimeMillis();
+
+        // Out of timestamp order, with a duplicate inside the batch
+        PubSubMessage msg1 = new PubSubMessage(UUID.randomUUID(), new Timestamp(now - 2), sndID, rcvID, msgText, BasicMessageType.SIMPLEMSG);
+        PubSubMessage msg2 = new PubSubMessage(UUID.randomUUID(), new Timestamp(now - 1), sndID, rcvID, msgText, BasicMessageType.SIMPLEMSG);
+        PubSubMessage msg3 = new PubSubMessage(UUID.randomUUID(), new Timestamp(now), sndID, rcvID, msgText, BasicMessageType.SIMPLEMSG);
+        assertEquals(List.of(true, true, false, true), tdq.addAll(List.of(msg3, msg1, msg3, msg2)));
+        assertEquals(3, tdq.getTotalMsgCount());
+
+        List<PubSubMessage> drained = new ArrayList<>();
+        assertEquals(0, tdq.drainTo(drained, 10));
+        try {
+            Thread.sleep(2 * DELAY);
+        }
+        catch (InterruptedException ie) {
+            fail();
+        }
+        assertEquals(2, tdq.drainTo(drained, 2));
+        assertEquals(List.of(msg1, msg2), drained);
+        assertEquals(1, tdq.drainTo(drained, 10));
+        assertEquals(msg3, drained.get(2));
+    }
+
+    @Test
+    public void testLogRecovery() {
+        File logDir = null;
+        try {
+            logDir = Files.createTempDirectory("tdq-log").toFile();
+        }
+        catch (IOException ioe) {
+            fail();
+        }
+        UUID sndID     = UUID.randomUUID();
+        UUID rcvID     = UUID.randomUUID();
+        String msgText = gson.toJson("test");
+        PubSubMessage msg1 = new PubSubMessage(sndID, rcvID, msgText);
+        PubSubMessage msg2 = new PubSubMessage(sndID, rcvID, msgText);
+        TransientPubSubMessage msg3 = new TransientPubSubMessage(sndID, rcvID, msgText, 10000);
+
+        MessageLog log = new MessageLog(logDir);
+        TimeDelayQueue tdq = new TimeDelayQueue(DELAY, log);
+        tdq.add(msg1);
+        tdq.add(msg2);
+        tdq.add(msg3);
+        try {
+            Thread.sleep(2 * DELAY);
+        }
+        catch (InterruptedException ie) {
+            fail();
+        }
+        assertEquals(msg1, tdq.getNext());
+        log.close();
+
+        // A restarted queue picks up where the old one left off
+        MessageLog reopened = new MessageLog(logDir);
+        TimeDelayQueue recovered = new TimeDelayQueue(DELAY, reopened);
+        assertEquals(2, recovered.getTotalMsgCount());
+        assertFalse(recovered.add(msg2));
+        assertEquals(msg2, recovered.getNext());
+        PubSubMessage msg = recovered.getNext();
+        assertEquals(msg3, msg);
+        assertTrue(msg.isTransient());
+        assertEquals(msgText, msg.getContent());
+        assertEquals(PubSubMessage.NO_MSG, recovered.getNext());
+        reopened.close();
+    }
+
+    @Test
+    public void testLogRetiresSegments() {
+        File logDir = null;
+        try {
+            logDir = Files.createTempDirectory("tdq-log").toFile();
+        }
+        catch (IOException ioe) {
+            fail();
+        }
+        UUID sndID     = UUID.randomUUID();
+        UUID rcvID     = UUID.randomUUID();
+        String msgText = gson.toJson("test");
+
+        // One message stays pending throughout, while thousands of others come and go
+        MessageLog log = new MessageLog(logDir, 4096, 16);
+        PubSubMessage pinned = new PubSubMessage(sndID, rcvID, msgText);
+        log.append(pinned);
+        List<PubSubMessage> pending = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            PubSubMessage msg = new PubSubMessage(sndID, rcvID, msgText);
+            log.append(msg);
+            pending.add(msg);
+            if (pending.size() > 10) {
+                log.remove(pending.remove(0).getId());
+            }
+        }
+        assertTrue(logDir.list().length <= 3);
+        log.close();
+
+        MessageLog reopened = new MessageLog(logDir, 4096, 16);
+        List<PubSubMessage> expected = new ArrayList<>();
+        expected.add(pinned);
+        expected.addAll(pending);
+        List<PubSubMessage> recovered = reopened.getRecovered();
+        assertEquals(expected.size(), recovered.size());
+        assertTrue(recovered.containsAll(expected));
+        reopened.close();
+    }
+
+    @Test
+    public void testLogSegmentSizeTooSmall() {
+        File logDir = new File(System.getProperty("java.io.tmpdir"), "tdq-log-unused");
+        assertThrows(IllegalArgumentException.class, () -> new MessageLog(logDir, 8, 16));
+        assertThrows(IllegalArgumentException.class, () -> new MessageLog(logDir, 4096, 0));
+    }
+
+    @Test
+    public void testSharedReceiverSet() {
+        UUID sndID = UUID.randomUUID();
+        UUID rcv1  = UUID.randomUUID();
+        UUID rcv2  = UUID.randomUUID();
+        ReceiverSet receivers = ReceiverSet.of(List.of(rcv2, rcv1, rcv2));
+        assertEquals(2, receivers.size());
+
+        PubSubMessage msg1 = new PubSubMessage(UUID.randomUUID(), new Timestamp(System.currentTimeMillis()),
+            sndID, receivers, gson.toJson("one"), BasicMessageType.SIMPLEMSG);
+        PubSubMessage msg2 = new TransientPubSubMessage(UUID.randomUUID(), new Timestamp(System.currentTimeMillis()),
+            sndID, receivers, gson.toJson("two"), BasicMessageType.SIMPLEMSG, MSG_LIFETIME);
+
+        // Both messages share the one set rather than copying it
+        assertTrue(msg1.getReceivers() == msg2.getReceivers());
+        assertTrue(msg1.isReceiver(rcv1));
+        assertTrue(msg2.isReceiver(rcv2));
+        assertFalse(msg1.isReceiver(sndID));
+        assertEquals(2, msg1.getReceiver().size());
+
+        // Every empty set is the one shared instance
+        assertTrue(ReceiverSet.of(List.of()) == ReceiverSet.EMPTY);
+        assertTrue(ReceiverSet.fromBits(new long[0]) == ReceiverSet.EMPTY);
+        assertEquals(0, ReceiverSet.EMPTY.size());
+    }
+
+    @Test
+    public void testReceiverListOrder() {
+        UUID sndID = UUID.randomUUID();
+        UUID rcv1  = new UUID(2, 0);
+        UUID rcv2  = new UUID(1, 0);
+        List<UUID> given = List.of(rcv1, rcv2, rcv1);
+
+        // getReceiver() keeps the order given and the duplicates; getReceivers() is the distinct set
+        PubSubMessage msg = new PubSubMessage(sndID, given, gson.toJson("hi"));
+        assertEquals(given, msg.getReceiver());
+        assertEquals(List.of(rcv2, rcv1), msg.getReceivers().toList());
+
+        PubSubMessage sorted = new PubSubMessage(sndID, List.of(rcv2, rcv1), gson.toJson("hi"));
+        assertEquals(List.of(rcv2, rcv1), sorted.getReceiver());
+    }
+
 }
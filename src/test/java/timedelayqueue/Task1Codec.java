@@ -0,0 +1,122 @@
+package test.java.timedelayqueue;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Task1Codec {
+
+    private static final int MSG_LIFETIME = 80;
+
+    // encode msg into a buffer of exactly its encoded size and decode it back
+    private static PubSubMessage roundTrip(PubSubMessage msg, boolean direct) {
+        int size = PubSubMessageCodec.encodedSize(msg);
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        PubSubMessageCodec.encode(msg, buffer);
+        assertEquals(0, buffer.remaining());
+        buffer.flip();
+        PubSubMessage decoded = PubSubMessageCodec.decode(buffer);
+        assertEquals(0, buffer.remaining());
+        return decoded;
+    }
+
+    private static void assertSameMessage(PubSubMessage expected, PubSubMessage actual) {
+        assertEquals(expected, actual);
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getTimestampMillis(), actual.getTimestampMillis());
+        assertEquals(expected.getSender(), actual.getSender());
+        assertEquals(expected.getReceiver(), actual.getReceiver());
+        assertEquals(expected.getContent(), actual.getContent());
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.isTransient(), actual.isTransient());
+    }
+
+    @Test
+    public void testRoundTrip_PubSubMessage() {
+        PubSubMessage msg = new PubSubMessage(UUID.randomUUID(), UUID.randomUUID(), "{\"text\":\"hello\"}");
+        assertSameMessage(msg, roundTrip(msg, false));
+        assertSameMessage(msg, roundTrip(msg, true));
+    }
+
+    @Test
+    public void testRoundTrip_TransientPubSubMessage() {
+        List<UUID> receivers = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            receivers.add(UUID.randomUUID());
+        }
+        TransientPubSubMessage msg = new TransientPubSubMessage(
+            UUID.randomUUID(),
+            new Timestamp(System.currentTimeMillis()),
+            UUID.randomUUID(),
+            receivers,
+            "{\"text\":\"caf\u00e9 \u65e5\u672c \ud83d\udc26\"}",
+            BasicMessageType.TWEET,
+            MSG_LIFETIME);
+
+        PubSubMessage decoded = roundTrip(msg, false);
+        assertSameMessage(msg, decoded);
+        assertEquals(MSG_LIFETIME, ((TransientPubSubMessage) decoded).getLifetime());
+    }
+
+    @Test
+    public void testRoundTrip_ReceiverOrderAndDuplicates() {
+        UUID rcv1 = UUID.randomUUID();
+        UUID rcv2 = UUID.randomUUID();
+        PubSubMessage msg = new PubSubMessage(UUID.randomUUID(), List.of(rcv1, rcv2, rcv1, rcv2), "\"hi\"");
+        PubSubMessage decoded = roundTrip(msg, false);
+        assertSameMessage(msg, decoded);
+        assertEquals(msg.getReceivers(), decoded.getReceivers());
+        assertEquals(2, decoded.getReceivers().size());
+    }
+
+    @Test
+    public void testRoundTrip_NoMsg() {
+        assertSameMessage(PubSubMessage.NO_MSG, roundTrip(PubSubMessage.NO_MSG, false));
+    }
+
+    @Test
+    public void testEncodedSizeIsCompact() {
+        // flags + type + two UUIDs + timestamp + one receiver + 2 bytes of content
+        PubSubMessage msg = new PubSubMessage(UUID.randomUUID(), UUID.randomUUID(), "hi");
+        assertTrue(PubSubMessageCodec.encodedSize(msg) <= 1 + 1 + 32 + 7 + 1 + 16 + 1 + 2);
+    }
+
+    @Test
+    public void testDecodeIdAndExpiry() {
+        PubSubMessage msg = new PubSubMessage(UUID.randomUUID(), UUID.randomUUID(), "\"kept\"");
+        TransientPubSubMessage transientMsg = new TransientPubSubMessage(
+            UUID.randomUUID(), UUID.randomUUID(), "\"fleeting\"", MSG_LIFETIME);
+        for (PubSubMessage original : List.of(msg, transientMsg)) {
+            ByteBuffer buffer = ByteBuffer.allocate(PubSubMessageCodec.encodedSize(original));
+            PubSubMessageCodec.encode(original, buffer);
+            buffer.flip();
+
+            // the buffer is left where it was, so the message can still be decoded from it
+            assertEquals(original.getId(), PubSubMessageCodec.decodeId(buffer));
+            long expiry = PubSubMessageCodec.decodeExpiry(buffer);
+            assertEquals(0, buffer.position());
+            assertSameMessage(original, PubSubMessageCodec.decode(buffer));
+            if (original.isTransient()) {
+                assertEquals(original.getTimestampMillis() + MSG_LIFETIME, expiry);
+            } else {
+                assertEquals(Long.MAX_VALUE, expiry);
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeTruncated() {
+        PubSubMessage msg = new PubSubMessage(UUID.randomUUID(), UUID.randomUUID(), "truncated");
+        ByteBuffer buffer = ByteBuffer.allocate(PubSubMessageCodec.encodedSize(msg));
+        PubSubMessageCodec.encode(msg, buffer);
+        buffer.flip();
+        buffer.limit(buffer.limit() - 4);
+        assertThrows(IllegalArgumentException.class, () -> PubSubMessageCodec.decode(buffer));
+    }
+}
@@ -154,4 +154,82 @@ public class Task2 {
         assertEquals(NUM_WRITERS * NUM_MSGS, tdq.getPeakLoad(window));
     }
 
+    @Test
+    public void testPeakLoadRegisteredWindow() {
+        TimeDelayQueue tdq          = new TimeDelayQueue(DELAY);
+        List<PubSubMessage> msgList = new ArrayList<>();
+        final int NUM_WRITERS = 10;
+        final int WINDOW      = 60 * 1000;
+
+        // a few operations before registering, which the running peak should pick up
+        tdq.getNext();
+        tdq.getNext();
+        tdq.registerPeakLoadWindow(WINDOW);
+
+        Thread[] writerArray = new Thread[NUM_WRITERS];
+
+        for (int i = 0; i < NUM_WRITERS; i++) {
+            writerArray[i] = new Thread(new Sender(i, tdq, msgList));
+        }
+
+        for (int i = 0; i < NUM_WRITERS; i++) {
+            writerArray[i].start();
+        }
+
+        for (int i = 0; i < NUM_WRITERS; i++) {
+            try {
+                writerArray[i].join();
+            }
+            catch (InterruptedException ie) {
+                fail();
+            }
+        }
+
+        assertEquals(NUM_WRITERS * NUM_MSGS + 2, tdq.getPeakLoad(WINDOW));
+        assertEquals(NUM_WRITERS * NUM_MSGS + 2, tdq.getPeakLoad(WINDOW - 1));
+    }
+
+    @Test
+    public void testHistoryBoundEvictsOldest() {
+        final int CAPACITY = 40;
+        final int WINDOW   = 60 * 1000;
+        TimeDelayQueue tdq = new TimeDelayQueue(DELAY, CAPACITY);
+        tdq.registerPeakLoadWindow(WINDOW);
+
+        // more operations than the bound, so the buffer grows to its capacity and then wraps
+        for (int i = 0; i < CAPACITY + 25; i++) {
+            tdq.getNext();
+        }
+
+        assertEquals(CAPACITY, tdq.getPeakLoad(WINDOW - 1));
+        // a registered window keeps counting operations after they are evicted
+        assertEquals(CAPACITY + 25, tdq.getPeakLoad(WINDOW));
+    }
+
+    @Test
+    public void testPeakLoadAcrossHistoryWrap() throws InterruptedException {
+        final int CAPACITY = 5;
+        TimeDelayQueue tdq = new TimeDelayQueue(DELAY, CAPACITY);
+
+        for (int i = 0; i < 3; i++) {
+            tdq.getNext();
+        }
+        Thread.sleep(300);
+        for (int i = 0; i < 4; i++) {
+            tdq.getNext();
+        }
+
+        // the ring has wrapped: it holds the last of the first burst and all of the second,
+        // the second burst spanning the end of the buffer and its start
+        assertEquals(4, tdq.getPeakLoad(100));
+        assertEquals(CAPACITY, tdq.getPeakLoad(10 * 1000));
+
+        Thread.sleep(300);
+        for (int i = 0; i < 2; i++) {
+            tdq.getNext();
+        }
+        assertEquals(3, tdq.getPeakLoad(100));
+        assertEquals(CAPACITY, tdq.getPeakLoad(10 * 1000));
+    }
+
 }
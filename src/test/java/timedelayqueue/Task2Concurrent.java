@@ -0,0 +1,225 @@
+package test.java.timedelayqueue;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class Task2Concurrent {
+    private static final int DELAY        = 40; // delay of 40 milliseconds
+    private static final int NUM_MSGS     = 2000;
+    private static final int NUM_WRITERS  = 16;
+    private static final int NUM_READERS  = 8;
+    private static final int MSG_LIFETIME = 20;
+
+    private static final Gson gson;
+
+    static {
+        GsonBuilder gsonBuilder = new GsonBuilder();
+        gsonBuilder.serializeNulls();
+        gson = gsonBuilder.create();
+    }
+
+    // Orders the completion of adds against the start of getNext() calls across threads
+    private final AtomicLong clock = new AtomicLong();
+    private final Map<PubSubMessage, Long> addedAt = new ConcurrentHashMap<>();
+
+    // Adds NUM_MSGS messages with out-of-order timestamps, every third one transient
+    // Any add that is rejected is counted in rejected, to be checked on the test thread
+    private class Sender implements Runnable {
+        private MessageQueue tdq;
+        private List<PubSubMessage> persistent;
+        private AtomicInteger rejected;
+
+        public Sender(MessageQueue tdq, List<PubSubMessage> persistent, AtomicInteger rejected) {
+            this.tdq        = tdq;
+            this.persistent = persistent;
+            this.rejected   = rejected;
+        }
+
+        public void run() {
+            for (int i = 0; i < NUM_MSGS; i++) {
+                UUID sndID     = UUID.randomUUID();
+                UUID rcvID     = UUID.randomUUID();
+                String text    = gson.toJson("loren ipsum");
+                Timestamp time = new Timestamp(System.currentTimeMillis() - (i % 7));
+                PubSubMessage msg;
+                if (i % 3 == 0) {
+                    msg = new TransientPubSubMessage(UUID.randomUUID(), time, sndID, rcvID, text,
+                        BasicMessageType.SIMPLEMSG, MSG_LIFETIME);
+                } else {
+                    msg = new PubSubMessage(UUID.randomUUID(), time, sndID, rcvID, text,
+                        BasicMessageType.SIMPLEMSG);
+                    persistent.add(msg);
+                }
+                if (tdq.add(msg)) {
+                    addedAt.put(msg, clock.incrementAndGet());
+                } else {
+                    rejected.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    // Drains the queue until told to stop, recording everything it receives along with
+    // the time and the clock tick just before the getNext() call that returned it
+    private class Receiver implements Runnable {
+        private MessageQueue tdq;
+        private List<PubSubMessage> received;
+        private List<Long> requestedAt = new ArrayList<>();
+        private List<Long> startedAt = new ArrayList<>();
+        private volatile boolean stop = false;
+
+        public Receiver(MessageQueue tdq, List<PubSubMessage> received) {
+            this.tdq      = tdq;
+            this.received = received;
+        }
+
+        public void run() {
+            while (true) {
+                long requested    = System.currentTimeMillis();
+                long started      = clock.incrementAndGet();
+                PubSubMessage msg = tdq.getNext();
+                if (msg != PubSubMessage.NO_MSG) {
+                    received.add(msg);
+                    requestedAt.add(requested);
+                    startedAt.add(started);
+                } else if (stop) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testStressOrderingAndExpiry() {
+        MessageQueue tdq                = new ConcurrentTimeDelayQueue(DELAY);
+        List<PubSubMessage> persistent  = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger rejected          = new AtomicInteger();
+
+        Thread[] writerArray = new Thread[NUM_WRITERS];
+        for (int i = 0; i < NUM_WRITERS; i++) {
+            writerArray[i] = new Thread(new Sender(tdq, persistent, rejected));
+            writerArray[i].start();
+        }
+        join(writerArray);
+
+        assertEquals(0, rejected.get());
+        assertEquals(NUM_WRITERS * NUM_MSGS, tdq.getTotalMsgCount());
+
+        // Persistent messages are still queued, so adding them again is a duplicate
+        for (PubSubMessage msg : persistent) {
+            assertFalse(tdq.add(msg));
+        }
+        assertEquals(NUM_WRITERS * NUM_MSGS, tdq.getTotalMsgCount());
+
+        // Every transient message is past its lifetime once the delay has elapsed
+        sleep(2 * DELAY);
+
+        List<PubSubMessage> received = new ArrayList<>();
+        PubSubMessage msg;
+        while ((msg = tdq.getNext()) != PubSubMessage.NO_MSG) {
+            received.add(msg);
+        }
+
+        assertEquals(persistent.size(), received.size());
+        assertEquals(new HashSet<>(persistent), new HashSet<>(received));
+        for (int i = 1; i < received.size(); i++) {
+            assertTrue(received.get(i - 1).getTimestamp().getTime() <= received.get(i).getTimestamp().getTime());
+        }
+    }
+
+    @Test
+    public void testStressConcurrentReaders() {
+        MessageQueue tdq                = new ConcurrentTimeDelayQueue(0);
+        List<PubSubMessage> persistent  = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger rejected          = new AtomicInteger();
+
+        Receiver[] receivers    = new Receiver[NUM_READERS];
+        Thread[] readerArray    = new Thread[NUM_READERS];
+        for (int i = 0; i < NUM_READERS; i++) {
+            receivers[i]   = new Receiver(tdq, new ArrayList<>());
+            readerArray[i] = new Thread(receivers[i]);
+            readerArray[i].start();
+        }
+
+        Thread[] writerArray = new Thread[NUM_WRITERS];
+        for (int i = 0; i < NUM_WRITERS; i++) {
+            writerArray[i] = new Thread(new Sender(tdq, persistent, rejected));
+            writerArray[i].start();
+        }
+        join(writerArray);
+        assertEquals(0, rejected.get());
+
+        // Give transient messages time to be delivered or expire, then stop the readers
+        sleep(2 * MSG_LIFETIME);
+        for (Receiver receiver : receivers) {
+            receiver.stop = true;
+        }
+        join(readerArray);
+
+        // No message is handed out twice, every persistent message is handed out once,
+        // and no transient message is handed out after its lifetime
+        Set<PubSubMessage> seen = new HashSet<>();
+        for (Receiver receiver : receivers) {
+            for (int i = 0; i < receiver.received.size(); i++) {
+                PubSubMessage msg = receiver.received.get(i);
+                assertTrue(seen.add(msg));
+                if (msg.isTransient()) {
+                    long expiry = msg.getTimestamp().getTime() + ((TransientPubSubMessage) msg).getLifetime();
+                    assertTrue(receiver.requestedAt.get(i) < expiry);
+                }
+            }
+        }
+        assertTrue(seen.containsAll(persistent));
+        assertEquals(NUM_WRITERS * NUM_MSGS, tdq.getTotalMsgCount());
+
+        // While the writers were running, each reader's timestamps never decreased, except for a
+        // message whose add completed after the getNext() that returned the later timestamp started
+        for (Receiver receiver : receivers) {
+            for (int j = 1; j < receiver.received.size(); j++) {
+                long time  = receiver.received.get(j).getTimestamp().getTime();
+                long added = addedAt.get(receiver.received.get(j));
+                for (int i = j - 1; i >= 0 && receiver.startedAt.get(i) > added; i--) {
+                    assertTrue(receiver.received.get(i).getTimestamp().getTime() <= time);
+                }
+            }
+        }
+    }
+
+    private static void join(Thread[] threads) {
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException ie) {
+                fail();
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException ie) {
+            fail();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package test.java.twitter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Task3Matching {
+
+    @Test
+    public void testSinglePattern() {
+        PatternMatcher matcher = new PatternMatcher("ceremonies");
+        assertTrue(matcher.matches("Congratulations! Ceremonies start at 9am"));
+        assertTrue(matcher.matches("CEREMONIES"));
+        assertFalse(matcher.matches("ceremony"));
+        assertFalse(matcher.matches(""));
+    }
+
+    @Test
+    public void testOverlappingPatterns() {
+        PatternMatcher matcher = new PatternMatcher("he", "she", "his", "hers");
+        assertTrue(matcher.matches("ushers"));
+        assertTrue(matcher.matches("this"));
+        assertFalse(matcher.matches("hi s"));
+
+        // a pattern that is only found through a failure link
+        PatternMatcher suffix = new PatternMatcher("abcd", "bce");
+        assertTrue(suffix.matches("xabce"));
+        assertFalse(suffix.matches("abcxd"));
+    }
+
+    @Test
+    public void testHashtagsAndNonAscii() {
+        PatternMatcher matcher = new PatternMatcher("#T20WorldCup", "Caf\u00e9", "\u65e5\u672c");
+        assertTrue(matcher.matches("What a final #t20worldcup!"));
+        assertTrue(matcher.matches("Meet at the CAF\u00c9"));
+        assertTrue(matcher.matches("Flights to \u65e5\u672c from YVR"));
+        assertFalse(matcher.matches("#T20 WorldCup"));
+        assertFalse(matcher.matches("cafe"));
+    }
+
+    @Test
+    public void testMatchingPatterns() {
+        PatternMatcher matcher = new PatternMatcher("he", "she", "his", "hers", "He");
+        BitSet ushers = matcher.matching("USHERS");
+        assertEquals(BitSet.valueOf(new long[] {0b11011}), ushers);
+        assertEquals(BitSet.valueOf(new long[] {0b00100}), matcher.matching("this"));
+        assertTrue(matcher.matching("nothing").isEmpty());
+        assertTrue(new PatternMatcher(new ArrayList<>()).matching("anything").isEmpty());
+    }
+
+    @Test
+    public void testNoPatterns() {
+        PatternMatcher matcher = new PatternMatcher(new ArrayList<>());
+        assertFalse(matcher.matches("anything"));
+        assertTrue(matcher.getPatterns().isEmpty());
+        assertTrue(new PatternMatcher("").matches("anything"));
+    }
+
+    @Test
+    public void testLengthChangingCase() {
+        // String.toLowerCase() turns the dotted capital I into two characters, and
+        // a capital sigma at the end of a word into a final sigma
+        PatternMatcher dotted = new PatternMatcher("\u0130stanbul");
+        assertTrue(dotted.matches("\u0130STANBUL"));
+        assertTrue(dotted.matches("Flights to \u0130stanbul"));
+        assertTrue(new PatternMatcher("\u0130").matches("\u0130"));
+        assertTrue(new PatternMatcher("\u03a3").matches("\u039f\u03a3"));
+        assertTrue(new PatternMatcher("\u03c3").matches("\u039f\u03a3"));
+    }
+
+    @Test
+    public void testAgreesWithContains() {
+        Random random = new Random(221);
+        // includes characters whose lower case differs between String and Character:
+        // dotted capital I, combining dot above, and capital, small and final sigma
+        String alphabet = "abAB c#i\u0130\u0307\u00e9\u00c9\u03a3\u03c3\u03c2";
+        for (int round = 0; round < 200; round++) {
+            List<String> patterns = new ArrayList<>();
+            for (int i = random.nextInt(6); i > 0; i--) {
+                patterns.add(randomString(random, alphabet, 1 + random.nextInt(4)));
+            }
+            PatternMatcher matcher = new PatternMatcher(patterns);
+            for (int t = 0; t < 20; t++) {
+                String text = randomString(random, alphabet, random.nextInt(30));
+                boolean expected = false;
+                BitSet expectedPatterns = new BitSet();
+                for (int p = 0; p < patterns.size(); p++) {
+                    if (fold(text).contains(fold(patterns.get(p)))) {
+                        expected = true;
+                        expectedPatterns.set(p);
+                    }
+                }
+                assertEquals(expected, matcher.matches(text), patterns + " in " + text);
+                assertEquals(expectedPatterns, matcher.matching(text), patterns + " in " + text);
+            }
+        }
+    }
+
+    // each character lower-cased on its own, which never changes the length
+    private static String fold(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            sb.append(Character.toLowerCase(s.charAt(i)));
+        }
+        return sb.toString();
+    }
+
+    private static String randomString(Random random, String alphabet, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+}